@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigCopyBenchmark {
+
+    MandrillConfig config;
+
+    @Setup
+    public void setup() {
+        config = new MandrillConfig()
+            .setApiKey("benchmark-key")
+            .setSigningDomain("guestful.com")
+            .setTrackingDomain("track.guestful.com")
+            .setBccAddress("archive@guestful.com")
+            .addTags("reservation", "reminder", "fr");
+    }
+
+    @Benchmark
+    public MandrillConfig copy() {
+        return config.copy();
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmailValidationBenchmark {
+
+    @Param({"valid", "long", "pathological"})
+    String input;
+
+    String email;
+
+    @Setup
+    public void setup() {
+        switch (input) {
+            case "valid":
+                email = "backend-continuous-build@guestful.com";
+                break;
+            case "long":
+                email = "first.middle.last.name+reservations@mail.restaurant-group.example.co.uk";
+                break;
+            default:
+                // backtracking heavy for the former regex: long runs of dot separated atoms and labels which fail at the end
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 40; i++) sb.append("a.");
+                sb.append("a@");
+                for (int i = 0; i < 40; i++) sb.append("a-a.");
+                email = sb.append("a-").toString();
+        }
+    }
+
+    @Benchmark
+    public boolean isValidEmail() {
+        return MandrillAddress.isValidEmail(email);
+    }
+
+}
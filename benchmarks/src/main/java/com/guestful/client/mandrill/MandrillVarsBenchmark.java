@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MandrillVarsBenchmark {
+
+    @Param({"5", "30"})
+    int count;
+
+    String[] names;
+    final MandrillVars reused = new MandrillVars();
+
+    @Setup
+    public void setup() {
+        names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "VAR_" + i;
+        }
+    }
+
+    @Benchmark
+    public MandrillVars set() {
+        MandrillVars vars = new MandrillVars();
+        for (int i = 0; i < count; i++) {
+            vars.set(names[i], i);
+        }
+        return vars;
+    }
+
+    @Benchmark
+    public MandrillVars set_reused() {
+        reused.clear();
+        for (int i = 0; i < count; i++) {
+            reused.set(names[i], i);
+        }
+        return reused;
+    }
+
+    @Benchmark
+    public MandrillVars set_overwrite() {
+        for (int i = 0; i < count; i++) {
+            reused.set(names[i], "value");
+        }
+        return reused;
+    }
+
+}
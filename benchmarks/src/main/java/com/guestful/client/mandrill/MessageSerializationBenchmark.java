@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageSerializationBenchmark {
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Param({"1", "10", "100"})
+    int recipients;
+
+    @Param({"0", "10", "50"})
+    int mergeVars;
+
+    MandrillMessage message;
+    MandrillRequestBody body;
+
+    @Setup
+    public void setup() {
+        MandrillClient client = new MandrillClient(new MandrillConfig().setApiKey("benchmark-key").addTag("benchmark"));
+        message = client.getTemplate("benchmark-template").createMandrillMessage()
+            .from("Guestful", "info@guestful.com")
+            .subject("Your reservation");
+        for (int v = 0; v < mergeVars; v++) {
+            message.set("GLOBAL_" + v, "global value " + v);
+        }
+        for (int r = 0; r < recipients; r++) {
+            String email = "guest" + r + "@example.com";
+            message.to("Guest " + r, email);
+            MandrillVars vars = message.getMergeVars(email);
+            for (int v = 0; v < mergeVars; v++) {
+                vars.set("VAR_" + v, "value " + r + "-" + v);
+            }
+        }
+        // the request body actually sent, which streams the message within its envelope
+        body = message.sendBody(null, Collections.emptySet());
+    }
+
+    @Benchmark
+    public JsonObject toJson() {
+        return message.toJson();
+    }
+
+    @Benchmark
+    public void stream() throws IOException {
+        body.writeTo(NULL);
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import com.sun.net.httpserver.HttpServer;
+import org.glassfish.jersey.jsonp.JsonProcessingFeature;
+import org.openjdk.jmh.annotations.*;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end send through the client pipeline and the JAX-RS client, against an in-process HTTP stub.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+
+    private static final byte[] RESPONSE = "[{\"email\":\"guest@example.com\",\"status\":\"sent\",\"_id\":\"abc123\",\"reject_reason\":null}]".getBytes(StandardCharsets.UTF_8);
+
+    HttpServer server;
+    Client restClient;
+    MandrillClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) ;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        server.start();
+        String uri = "http://127.0.0.1:" + server.getAddress().getPort();
+        restClient = ClientBuilder.newClient().register(JsonProcessingFeature.class);
+        client = new MandrillClient(restClient, new MandrillConfig().setApiKey("benchmark-key")) {
+            @Override
+            protected WebTarget buildWebTarget() {
+                return getClient().target(uri);
+            }
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        restClient.close();
+        server.stop(0);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<MandrillSendResult> send() {
+        return client.getTemplate("benchmark-template").createMandrillMessage()
+            .from("Guestful", "info@guestful.com")
+            .to("Guest", "guest@example.com")
+            .set("NAME", "Guest")
+            .set("TIME", "20:30")
+            .send();
+    }
+
+}
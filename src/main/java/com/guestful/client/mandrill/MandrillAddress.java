@@ -17,7 +17,7 @@ package com.guestful.client.mandrill;
 
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
-import java.util.regex.Pattern;
+import javax.json.stream.JsonGenerator;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -25,7 +25,27 @@ import java.util.regex.Pattern;
 public class MandrillAddress {
 
     // See for email validation: http://www.regular-expressions.info/email.html
-    private static final Pattern PATTERN_EMAIL = Pattern.compile("[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*@(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?", Pattern.CASE_INSENSITIVE);
+    // Same language as [a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*@(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?
+    // (case insensitive), checked in one pass without backtracking
+    private static final long[] ATEXT = new long[2];
+    private static final long[] ALNUM = new long[2];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            set(ATEXT, c);
+            set(ATEXT, Character.toUpperCase(c));
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            set(ATEXT, c);
+        }
+        System.arraycopy(ATEXT, 0, ALNUM, 0, 2);
+        for (char c : "!#$%&'*+/=?^_`{|}~-".toCharArray()) {
+            set(ATEXT, c);
+        }
+    }
+
+    private static final int INTERNED_SIZE = 1024;
+    private static final MandrillAddress[] INTERNED = new MandrillAddress[INTERNED_SIZE];
 
     private final String name;
     private final String email;
@@ -47,6 +67,12 @@ public class MandrillAddress {
         return _to;
     }
 
+    void writeTo(JsonGenerator generator) {
+        generator.writeStartObject().write("email", getEmail());
+        if (getName() != null) generator.write("name", getName());
+        generator.writeEnd();
+    }
+
     public String getName() {
         return name;
     }
@@ -60,7 +86,82 @@ public class MandrillAddress {
         return getName() + " <" + getEmail() + ">";
     }
 
+    /**
+     * Returns a shared instance for frequently used addresses (senders, archive addresses, ...).
+     * Interned addresses are kept in a small fixed-size cache where a colliding address replaces the previous one.
+     */
+    public static MandrillAddress intern(String name, String email) {
+        if (email == null) throw new NullPointerException();
+        int slot = (email.hashCode() * 0x9E3779B9 >>> 16) & (INTERNED_SIZE - 1);
+        MandrillAddress address = INTERNED[slot];
+        if (address != null && address.email.equals(email) && (name == null ? address.name == null : name.equals(address.name))) {
+            return address;
+        }
+        address = new MandrillAddress(name, email);
+        // racy but safe: instances are immutable
+        INTERNED[slot] = address;
+        return address;
+    }
+
+    public static MandrillAddress intern(String email) {
+        return intern(email, email);
+    }
+
     public static boolean isValidEmail(String email) {
-        return email != null && PATTERN_EMAIL.matcher(email).matches();
+        if (email == null) return false;
+        int n = email.length();
+        int i = 0;
+        // local part: dot separated atoms
+        boolean atomStart = true;
+        for (; i < n; i++) {
+            char c = email.charAt(i);
+            if (c == '@') break;
+            if (c == '.') {
+                if (atomStart) return false;
+                atomStart = true;
+            } else if (is(ATEXT, c)) {
+                atomStart = false;
+            } else {
+                return false;
+            }
+        }
+        if (i == n || atomStart) return false;
+        i++;
+        // domain: at least two dot separated labels, starting and ending with a letter or digit
+        for (int labels = 1; ; labels++) {
+            if (i == n || !is(ALNUM, email.charAt(i))) return false;
+            char last = email.charAt(i++);
+            for (char c; i < n && (is(ALNUM, c = email.charAt(i)) || c == '-'); i++) {
+                last = c;
+            }
+            if (last == '-') return false;
+            if (i == n) return labels >= 2;
+            if (email.charAt(i++) != '.') return false;
+        }
+    }
+
+    // 64-bit FNV-1a of the lower-cased address, then mixed (murmur3 finalizer)
+    static long hash(String email) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = email.length(); i < n; i++) {
+            char c = email.charAt(i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            else if (c >= 0x80) c = Character.toLowerCase(c);
+            h = (h ^ c) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void set(long[] table, char c) {
+        table[c >>> 6] |= 1L << c;
+    }
+
+    private static boolean is(long[] table, char c) {
+        return c < 128 && (table[c >>> 6] & (1L << c)) != 0;
     }
 }
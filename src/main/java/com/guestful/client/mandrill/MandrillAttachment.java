@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * A file attached to a message, or embedded as an inline image. Its content is only read when the message
+ * is serialized, and base64-encoded chunk by chunk straight into the request entity.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class MandrillAttachment {
+
+    // a multiple of 3: chunks are encoded without padding but the last one
+    private static final int CHUNK = 3 * 16 * 1024;
+    private static final byte[] CONTENT_START = ",\"content\":\"".getBytes(StandardCharsets.US_ASCII);
+
+    final String type;
+    final String name;
+    final Path file;
+
+    MandrillAttachment(String type, String name, Path file) {
+        if (!Files.isReadable(file)) throw new IllegalArgumentException("Not a readable file: " + file);
+        this.type = type;
+        this.name = name;
+        this.file = file;
+    }
+
+    /**
+     * @param raw the entity stream the generator writes to, or null to only describe the content (i.e. in logs)
+     */
+    void writeTo(JsonGenerator generator, OutputStream raw) throws IOException {
+        generator.writeStartObject()
+            .write("type", type)
+            .write("name", name);
+        if (raw == null) {
+            generator.write("content", "<" + Files.size(file) + " bytes from " + file + ">");
+        } else {
+            // the generator has written the previous fields: the content is appended to them as raw JSON
+            generator.flush();
+            raw.write(CONTENT_START);
+            writeContentTo(raw);
+            raw.write('"');
+        }
+        generator.writeEnd();
+    }
+
+    JsonObject toJson() {
+        try {
+            return Json.createObjectBuilder()
+                .add("type", type)
+                .add("name", name)
+                .add("content", Base64.getEncoder().encodeToString(Files.readAllBytes(file)))
+                .build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeContentTo(OutputStream out) throws IOException {
+        Base64.Encoder encoder = Base64.getEncoder();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+        byte[] encoded = new byte[CHUNK / 3 * 4];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            boolean eof = false;
+            while (!eof) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) < 0) {
+                        eof = true;
+                        break;
+                    }
+                }
+                if (buffer.position() > 0) {
+                    // only the last chunk can be partial
+                    byte[] chunk = buffer.position() == CHUNK ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+                    int length = encoder.encode(chunk, encoded);
+                    out.write(encoded, 0, length);
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    static String probeContentType(Path file) {
+        try {
+            String type = Files.probeContentType(file);
+            if (type != null) return type;
+        } catch (IOException ignored) {
+        }
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".png")) return "image/png";
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".gif")) return "image/gif";
+        if (name.endsWith(".pdf")) return "application/pdf";
+        return "application/octet-stream";
+    }
+
+}
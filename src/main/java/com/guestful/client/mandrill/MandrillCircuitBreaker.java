@@ -0,0 +1,141 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling Mandrill while it is degraded.
+ * <p>
+ * The outcome of the last calls is kept in a sliding window: once it is full, the circuit opens if the
+ * rate of failed calls (no response, 5xx) or of slow calls reaches its threshold. While open, calls are
+ * refused without being sent. After the open duration, a single probe call is let through (half-open):
+ * the circuit closes if it succeeds and opens again otherwise.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillCircuitBreaker {
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final double failureRateThreshold;
+    private final long slowCallDuration;
+    private final double slowCallRateThreshold;
+    private final long openDuration;
+    private final boolean[] failures;
+    private final boolean[] slows;
+    private int next;
+    private int calls;
+    private int failureCount;
+    private int slowCount;
+    private State state = State.CLOSED;
+    private long openedAt;
+
+    /**
+     * Opens when half of the last 20 calls failed or when 80% of them took more than 10 seconds, for 30 seconds.
+     */
+    public MandrillCircuitBreaker() {
+        this(20, 0.5, 10_000, 0.8, 30_000, TimeUnit.MILLISECONDS);
+    }
+
+    public MandrillCircuitBreaker(int windowSize, double failureRateThreshold, long slowCallDuration, double slowCallRateThreshold, long openDuration, TimeUnit unit) {
+        if (windowSize < 1) throw new IllegalArgumentException("windowSize: " + windowSize);
+        if (!(failureRateThreshold > 0 && failureRateThreshold <= 1)) throw new IllegalArgumentException("failureRateThreshold: " + failureRateThreshold);
+        if (!(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1)) throw new IllegalArgumentException("slowCallRateThreshold: " + slowCallRateThreshold);
+        if (slowCallDuration <= 0) throw new IllegalArgumentException("slowCallDuration: " + slowCallDuration);
+        if (openDuration <= 0) throw new IllegalArgumentException("openDuration: " + openDuration);
+        this.failures = new boolean[windowSize];
+        this.slows = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallDuration = unit.toNanos(slowCallDuration);
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openDuration = unit.toNanos(openDuration);
+    }
+
+    /**
+     * @return true if a call can be made now. When half-open, only the first caller gets the probe.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openDuration) return false;
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if this success closed the circuit
+     */
+    public synchronized boolean onSuccess(long latencyNanos) {
+        if (state == State.HALF_OPEN) {
+            reset(State.CLOSED);
+            return true;
+        }
+        if (state == State.CLOSED) {
+            record(false, latencyNanos >= slowCallDuration);
+        }
+        return false;
+    }
+
+    public synchronized void onFailure(long latencyNanos) {
+        if (state == State.HALF_OPEN) {
+            open();
+        } else if (state == State.CLOSED) {
+            record(true, latencyNanos >= slowCallDuration);
+        }
+    }
+
+    public long getOpenDuration(TimeUnit unit) {
+        return unit.convert(openDuration, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure, boolean slow) {
+        if (calls == failures.length) {
+            if (failures[next]) failureCount--;
+            if (slows[next]) slowCount--;
+        } else {
+            calls++;
+        }
+        failures[next] = failure;
+        slows[next] = slow;
+        if (failure) failureCount++;
+        if (slow) slowCount++;
+        next = (next + 1) % failures.length;
+        if (calls == failures.length && (failureCount >= failureRateThreshold * calls || slowCount >= slowCallRateThreshold * calls)) {
+            open();
+        }
+    }
+
+    private void open() {
+        reset(State.OPEN);
+        openedAt = System.nanoTime();
+    }
+
+    private void reset(State state) {
+        this.state = state;
+        next = calls = failureCount = slowCount = 0;
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.ws.rs.core.Response;
+
+/**
+ * Thrown without calling Mandrill while the {@link MandrillCircuitBreaker} is open.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillCircuitOpenException extends MandrillException {
+
+    MandrillCircuitOpenException(String request) {
+        super("Mandrill circuit breaker is open: " + request + " not sent", Response.Status.SERVICE_UNAVAILABLE);
+    }
+
+    @Override
+    public boolean isRetryable() {
+        return false;
+    }
+
+}
@@ -15,15 +15,28 @@
  */
 package com.guestful.client.mandrill;
 
+import javax.json.Json;
 import javax.json.JsonObject;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -33,10 +46,22 @@ public class MandrillClient {
     private static final Logger LOGGER = Logger.getLogger(MandrillClient.class.getName());
 
     private final Client client;
-    private final WebTarget target;
+    private final MandrillTransport transport;
     private final MandrillConfig config;
     private boolean enabled = true;
     private final MandrillTemplate emptyTemplate;
+    private final MandrillRateLimiter rateLimiter;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile MandrillOutbox outbox;
+    private volatile MandrillRenderCache renderCache;
+    private volatile MandrillMetricsListener metricsListener;
+    private volatile MandrillRequestLogger requestLogger = new MandrillRequestLogger();
+    private volatile MandrillCircuitBreaker circuitBreaker;
+    private volatile MandrillSuppressionList suppressionList;
+    private volatile MandrillShardRouter shardRouter;
+    private volatile MandrillTimingWheel timingWheel;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final ConcurrentHashMap<String, CompletableFuture<MandrillCompiledTemplate>> compiledTemplates = new ConcurrentHashMap<>();
 
     public MandrillClient(Client restClient) {
         this(restClient, new MandrillConfig());
@@ -48,15 +73,34 @@ public class MandrillClient {
 
     public MandrillClient(Client restClient, MandrillConfig config) {
         this.client = restClient;
-        this.target = buildWebTarget();
+        this.transport = new MandrillJaxRsTransport(buildWebTarget());
         this.config = config;
         this.emptyTemplate = new MandrillTemplate(this, null);
+        this.rateLimiter = createRateLimiter(config);
     }
 
+    /**
+     * Sends the requests through the given transport, i.e. a {@link MandrillHttpTransport} to not depend on any JAX-RS implementation
+     */
+    public MandrillClient(MandrillTransport transport, MandrillConfig config) {
+        this.client = null;
+        this.transport = transport;
+        this.config = config;
+        this.emptyTemplate = new MandrillTemplate(this, null);
+        this.rateLimiter = createRateLimiter(config);
+    }
+
+    /**
+     * @return the JAX-RS client, or null if this client was created with a {@link MandrillTransport}
+     */
     public Client getClient() {
         return client;
     }
 
+    public MandrillTransport getTransport() {
+        return transport;
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -77,34 +121,519 @@ public class MandrillClient {
         return config;
     }
 
-    protected WebTarget buildWebTarget() {
-        return getClient().target("https://mandrillapp.com/api/1.0");
-    }
-
-    Response request(String method, String path, JsonObject message) {
-        if (LOGGER.isLoggable(Level.FINEST)) {
-            if (message.containsKey("message")) {
-                JsonObject msg = message.getJsonObject("message");
-                if (msg.containsKey("html") || msg.containsKey("text")) {
-                    String str = message.toString();
-                    if (str.length() > 1000) {
-                        LOGGER.finest(method + " " + path + " : " + str.substring(0, 1000));
-                    } else {
-                        LOGGER.finest(method + " " + path + " : " + str);
-                    }
-                } else {
-                    LOGGER.finest(method + " " + path + " : " + message);
+    public MandrillRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public MandrillOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Journal all the send requests in this outbox before transmitting them
+     */
+    public void setOutbox(MandrillOutbox outbox) {
+        this.outbox = outbox;
+    }
+
+    public MandrillMetricsListener getMetricsListener() {
+        return metricsListener;
+    }
+
+    public void setMetricsListener(MandrillMetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    public MandrillCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * While the circuit is open, requests fail with a {@link MandrillCircuitOpenException}, or, when an outbox is set,
+     * sends are spooled in the outbox and complete without results. The outbox is replayed when the circuit closes.
+     */
+    public void setCircuitBreaker(MandrillCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public MandrillSuppressionList getSuppressionList() {
+        return suppressionList;
+    }
+
+    /**
+     * Recipients found in this list are not sent to. The list learns the permanent rejections from the send results.
+     */
+    public void setSuppressionList(MandrillSuppressionList suppressionList) {
+        this.suppressionList = suppressionList;
+    }
+
+    public MandrillShardRouter getShardRouter() {
+        return shardRouter;
+    }
+
+    /**
+     * Sends each message with the API key, subaccount, rate limit and circuit breaker of the shard chosen by this router
+     */
+    public void setShardRouter(MandrillShardRouter shardRouter) {
+        this.shardRouter = shardRouter;
+    }
+
+    public MandrillRequestLogger getRequestLogger() {
+        return requestLogger;
+    }
+
+    public void setRequestLogger(MandrillRequestLogger requestLogger) {
+        this.requestLogger = requestLogger;
+    }
+
+    public MandrillRenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    public void setRenderCache(MandrillRenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    /**
+     * Forget the template sources fetched for local rendering so that they are fetched again on next render
+     */
+    public void clearCompiledTemplates() {
+        compiledTemplates.clear();
+    }
+
+    /**
+     * @return the compiled template source, or null if it cannot be rendered locally
+     */
+    CompletionStage<MandrillCompiledTemplate> getCompiledTemplate(String slugName) {
+        CompletableFuture<MandrillCompiledTemplate> future = compiledTemplates.get(slugName);
+        if (future != null) {
+            return future;
+        }
+        CompletableFuture<MandrillCompiledTemplate> created = new CompletableFuture<>();
+        future = compiledTemplates.putIfAbsent(slugName, created);
+        if (future != null) {
+            return future;
+        }
+        CompletionStage<MandrillResponse> fetched;
+        try {
+            JsonObject body = Json.createObjectBuilder()
+                .add("key", config.getApiKey())
+                .add("name", slugName)
+                .build();
+            fetched = requestAsync(HttpMethod.POST, "templates/info.json", slugName, body);
+        } catch (RuntimeException e) {
+            // the future is already published: never leave it pending
+            compiledTemplates.remove(slugName, created);
+            created.completeExceptionally(e);
+            return created;
+        }
+        fetched.whenComplete((response, error) -> {
+            if (error != null) {
+                // do not cache failures: next render will try again
+                compiledTemplates.remove(slugName, created);
+                LOGGER.log(Level.FINE, "Unable to fetch template " + slugName + ", rendering remotely", error);
+                created.complete(null);
+                return;
+            }
+            try {
+                JsonObject info = response.readJsonObject();
+                String code = info.getString("publish_code", null);
+                if (code == null) code = info.getString("code", "");
+                created.complete(MandrillCompiledTemplate.compile(code));
+            } catch (IllegalArgumentException e) {
+                LOGGER.fine(() -> "Template " + slugName + " will be rendered remotely: " + e.getMessage());
+                created.complete(null);
+            } catch (RuntimeException e) {
+                compiledTemplates.remove(slugName, created);
+                created.complete(null);
+            } finally {
+                response.close();
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Holds the messages sent with {@link MandrillMessage#sendAt(java.time.Instant)}. Defaults to a wheel ticking every 100 ms,
+     * without journal.
+     */
+    public MandrillTimingWheel getTimingWheel() {
+        MandrillTimingWheel timingWheel = this.timingWheel;
+        if (timingWheel == null) {
+            synchronized (this) {
+                timingWheel = this.timingWheel;
+                if (timingWheel == null) {
+                    this.timingWheel = timingWheel = new MandrillTimingWheel(this, 100, TimeUnit.MILLISECONDS);
                 }
+            }
+        }
+        return timingWheel;
+    }
+
+    public void setTimingWheel(MandrillTimingWheel timingWheel) {
+        this.timingWheel = timingWheel;
+    }
+
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService scheduler = this.scheduler;
+        if (scheduler == null) {
+            synchronized (this) {
+                scheduler = this.scheduler;
+                if (scheduler == null) {
+                    this.scheduler = scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "mandrill-scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return scheduler;
+    }
+
+    protected WebTarget buildWebTarget() {
+        return getClient().target(MandrillTransport.DEFAULT_BASE_URI);
+    }
+
+    private static MandrillRateLimiter createRateLimiter(MandrillConfig config) {
+        return config.getRateLimit() > 0 ? new MandrillRateLimiter(config.getRateLimit(), config.getRateLimitBurst()) : null;
+    }
+
+    static <T> T join(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    CompletionStage<MandrillResponse> requestAsync(String method, String path, String template, JsonObject message) {
+        return requestAsync(method, path, template, MandrillRequestBody.of(message));
+    }
+
+    CompletionStage<MandrillResponse> requestAsync(String method, String path, String template, MandrillRequestBody body) {
+        return requestAsync(method, path, template, null, body);
+    }
+
+    CompletionStage<MandrillResponse> requestAsync(String method, String path, String template, MandrillShard shard, JsonObject message) {
+        return requestAsync(method, path, template, shard, MandrillRequestBody.of(message));
+    }
+
+    CompletionStage<MandrillResponse> requestAsync(String method, String path, String template, MandrillShard shard, MandrillRequestBody body) {
+        MandrillOutbox outbox = this.outbox;
+        if (outbox != null && isEnabled() && path.startsWith("messages/send")) {
+            byte[] bytes = body.toBytes();
+            return outbox.append(path, bytes).thenCompose(id -> {
+                MandrillRequest request = new MandrillRequest(method, path, template, MandrillRequestBody.of(bytes));
+                request.shard = shard;
+                return requestAsync(request, outbox, id);
+            });
+        }
+        MandrillRequest request = new MandrillRequest(method, path, template, body);
+        request.shard = shard;
+        log(request);
+        if (!isEnabled()) {
+            return CompletableFuture.completedFuture(MandrillResponse.ok());
+        }
+        CompletableFuture<MandrillResponse> future = new CompletableFuture<>();
+        attempt(request, future);
+        return future;
+    }
+
+    CompletionStage<MandrillResponse> requestAsync(MandrillRequest request, MandrillOutbox outbox, long id) {
+        log(request);
+        CompletableFuture<MandrillResponse> future = new CompletableFuture<>();
+        CompletableFuture<MandrillResponse> sent = new CompletableFuture<>();
+        sent.whenComplete((response, error) -> {
+            if (error instanceof MandrillCircuitOpenException) {
+                // sent again when the circuit closes
+                outbox.spool(id, request.path, request.body.toBytes());
+                scheduleDrain(outbox, circuitBreaker(request));
+                future.complete(MandrillResponse.spooled());
+                return;
+            }
+            // retryable errors which outlived the retry policy stay in the outbox until the next replay
+            if (error == null || !MandrillRetryPolicy.isRetryable(error)) {
+                outbox.markDone(id);
+            }
+            if (error != null) future.completeExceptionally(error);
+            else future.complete(response);
+        });
+        attempt(request, sent);
+        return future;
+    }
+
+    // without new sends nothing would probe the circuit: the spooled requests do it once the open duration is elapsed
+    private void scheduleDrain(MandrillOutbox outbox, MandrillCircuitBreaker breaker) {
+        if (breaker != null && drainScheduled.compareAndSet(false, true)) {
+            getScheduler().schedule(() -> {
+                drainScheduled.set(false);
+                outbox.replay(this);
+            }, breaker.getOpenDuration(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private MandrillRateLimiter rateLimiter(MandrillRequest request) {
+        return request.shard != null && request.shard.getRateLimiter() != null ? request.shard.getRateLimiter() : rateLimiter;
+    }
+
+    private MandrillCircuitBreaker circuitBreaker(MandrillRequest request) {
+        return request.shard != null && request.shard.getCircuitBreaker() != null ? request.shard.getCircuitBreaker() : circuitBreaker;
+    }
+
+    private void attempt(MandrillRequest request, CompletableFuture<MandrillResponse> future) {
+        MandrillRateLimiter limiter = rateLimiter(request);
+        long delay = limiter == null ? 0 : limiter.reserve();
+        if (delay > 0) {
+            getScheduler().schedule(() -> invoke(request, future), delay, TimeUnit.NANOSECONDS);
+        } else {
+            invoke(request, future);
+        }
+    }
+
+    private void invoke(MandrillRequest request, CompletableFuture<MandrillResponse> future) {
+        CompletableFuture<MandrillResponse> call = new CompletableFuture<>();
+        call.whenComplete((response, error) -> {
+            if (error == null) {
+                future.complete(response);
+                return;
+            }
+            MandrillRetryPolicy retryPolicy = config.getRetryPolicy();
+            int attempt = request.attempt;
+            if (retryPolicy != null && retryPolicy.shouldRetry(attempt, error)) {
+                long backoff = retryPolicy.getDelay(attempt);
+                LOGGER.fine(() -> request + " : attempt " + attempt + " failed, retrying in " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms: " + error.getMessage());
+                request.attempt++;
+                MandrillMetricsListener listener = metricsListener;
+                if (listener != null) listener.onRetry(request.path, request.template);
+                getScheduler().schedule(() -> attempt(request, future), backoff, TimeUnit.NANOSECONDS);
             } else {
-                LOGGER.finest(method + " " + path + " : " + message);
+                future.completeExceptionally(error);
+            }
+        });
+        MandrillCircuitBreaker breaker = circuitBreaker(request);
+        if (breaker != null && !breaker.tryAcquire()) {
+            MandrillMetricsListener listener = metricsListener;
+            if (listener != null) listener.onRejection(request.path, request.template);
+            call.completeExceptionally(new MandrillCircuitOpenException(request.toString()));
+            return;
+        }
+        MandrillTransport.Entity entity = new RequestEntity(request, config.getCompressionThreshold());
+        long start = System.nanoTime();
+        CompletionStage<MandrillResponse> sent;
+        try {
+            sent = transport.send(request.method, request.path, entity);
+        } catch (RuntimeException e) {
+            completed(request, breaker, start, 0, e);
+            call.completeExceptionally(e);
+            return;
+        }
+        sent.whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                completed(request, breaker, start, 0, cause);
+                call.completeExceptionally(cause);
+                return;
+            }
+            try {
+                MandrillResponse checked = check(response, request);
+                completed(request, breaker, start, response.getStatus(), null);
+                call.complete(checked);
+            } catch (RuntimeException e) {
+                completed(request, breaker, start, response.getStatus(), e);
+                call.completeExceptionally(e);
+            }
+        });
+    }
+
+    private void completed(MandrillRequest request, MandrillCircuitBreaker breaker, long start, int status, Throwable error) {
+        long latency = System.nanoTime() - start;
+        MandrillMetricsListener listener = metricsListener;
+        if (listener != null) {
+            listener.onRequest(request.path, request.template, status, latency, request.bytes);
+        }
+        if (breaker != null) {
+            // rate limiting is handled by the rate limiter, and other errors come from the request itself
+            boolean failure = error != null && MandrillRetryPolicy.isRetryable(error)
+                && !(error instanceof MandrillException && ((MandrillException) error).isRateLimited());
+            if (failure) {
+                breaker.onFailure(latency);
+            } else if (breaker.onSuccess(latency)) {
+                MandrillOutbox outbox = this.outbox;
+                if (outbox != null) {
+                    LOGGER.fine("Circuit closed: replaying the spooled requests");
+                    outbox.replay(this);
+                }
+            }
+        }
+    }
+
+    private MandrillResponse check(MandrillResponse response, MandrillRequest request) throws MandrillException {
+        if (response.getStatus() != 200) {
+            MandrillException e;
+            try {
+                e = new MandrillException(response, request.body.toJson());
+            } finally {
+                response.close();
+            }
+            if (e.isRateLimited()) {
+                MandrillRateLimiter limiter = rateLimiter(request);
+                if (limiter != null) limiter.onThrottled();
+                MandrillMetricsListener listener = metricsListener;
+                if (listener != null) listener.onRejection(request.path, request.template);
+            }
+            throw e;
+        }
+        MandrillRateLimiter limiter = rateLimiter(request);
+        if (limiter != null) {
+            limiter.onSuccess();
+        }
+        return response;
+    }
+
+    private void log(MandrillRequest request) {
+        MandrillRequestLogger logger = requestLogger;
+        if (logger != null) logger.log(request);
+    }
+
+    /**
+     * Writes the request body, gzip-compressed on the fly when it is larger than the threshold. The size is found by
+     * rendering the body in a buffer that is given up as soon as the threshold is reached.
+     */
+    private final class RequestEntity implements MandrillTransport.Entity {
+        private final MandrillRequest request;
+        private final int threshold;
+        private boolean sized;
+        private byte[] small;
+
+        RequestEntity(MandrillRequest request, int threshold) {
+            this.request = request;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            if (threshold <= 0) return null;
+            if (!sized) {
+                small = render(request.body, threshold);
+                sized = true;
             }
+            return small == null ? "gzip" : null;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            CountingOutputStream counting = new CountingOutputStream(out);
+            if (getContentEncoding() == null) {
+                if (small != null) counting.write(small);
+                else request.body.writeTo(counting);
+                request.bytes = counting.count;
+                return;
+            }
+            CompressingOutputStream gzip = new CompressingOutputStream(counting);
+            request.body.writeTo(gzip);
+            gzip.finish();
+            request.bytes = counting.count;
+            MandrillMetricsListener listener = metricsListener;
+            if (listener != null) {
+                // the time spent writing to the entity stream is not compression
+                listener.onCompression(request.path, request.template, gzip.count, counting.count, Math.max(0, gzip.nanos - counting.nanos));
+            }
+        }
+    }
+
+    /**
+     * @return the body, or null if it is larger than the threshold
+     */
+    private static byte[] render(MandrillRequestBody body, int threshold) {
+        BoundedOutputStream out = new BoundedOutputStream(threshold);
+        try {
+            body.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            if (out.overflow) return null;
+            if (e instanceof IOException) throw new UncheckedIOException((IOException) e);
+            throw (RuntimeException) e;
+        }
+        return out.toByteArray();
+    }
+
+    private static final class BoundedOutputStream extends ByteArrayOutputStream {
+        private final int max;
+        boolean overflow;
+
+        BoundedOutputStream(int max) {
+            super(Math.min(max + 1, 8192));
+            this.max = max;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > max) {
+                overflow = true;
+                throw new UncheckedIOException(new IOException("More than " + max + " bytes"));
+            }
+            super.write(b, off, len);
+        }
+    }
+
+    private static final class CompressingOutputStream extends GZIPOutputStream {
+        long count;
+        long nanos;
+
+        CompressingOutputStream(CountingOutputStream out) throws IOException {
+            super(out, 8192);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            super.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            count += len;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            long start = System.nanoTime();
+            super.finish();
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+        long nanos;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            count += len;
         }
-        return isEnabled() ?
-            target
-                .path(path)
-                .request(MediaType.APPLICATION_JSON_TYPE)
-                .method(method, Entity.json(message)) :
-            Response.ok().build();
     }
 
 }
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers messages sharing the same template, sender, subject, tags and tracking configuration
+ * for a short window and sends them as a single request with one 'to' entry and one set of
+ * 'merge_vars' per recipient. Each caller receives the per-recipient results of its own message.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillCoalescingSender implements AutoCloseable {
+
+    private static final Set<String> PER_RECIPIENT_FIELDS = new HashSet<>(Arrays.asList("to", "global_merge_vars", "merge_vars"));
+
+    private final ScheduledExecutorService scheduler;
+    private final long windowNanos;
+    private final int maxRecipients;
+    private final Map<List<Object>, Batch> batches = new HashMap<>();
+    private boolean closed;
+
+    public MandrillCoalescingSender(long window, TimeUnit unit, int maxRecipients) {
+        if (maxRecipients < 1) throw new IllegalArgumentException("maxRecipients: " + maxRecipients);
+        this.windowNanos = unit.toNanos(window);
+        this.maxRecipients = maxRecipients;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mandrill-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletionStage<List<MandrillSendResult>> submit(MandrillMessage message) {
+        if (message.hasAttachments()) {
+            // streamed from the files instead of being loaded in the JSON tree
+            return message.sendAsync();
+        }
+        return submit(message, message.toJson());
+    }
+
+    /**
+     * @param json the message content, as returned by {@link MandrillMessage#toJson()}
+     */
+    CompletionStage<List<MandrillSendResult>> submit(MandrillMessage message, JsonObject json) {
+        JsonArray tos = json.getJsonArray("to");
+        // decided from the content: a message recovered from a journal does not have its original config
+        if (json.getBoolean("preserve_recipients", false) || tos.isEmpty()) {
+            return message.sendAsync(json);
+        }
+        Entry entry = new Entry(message, json);
+        List<Batch> ready = new ArrayList<>(2);
+        synchronized (batches) {
+            // the timer of a new batch could not be scheduled
+            if (closed) {
+                entry.future.completeExceptionally(new IllegalStateException("Coalescing sender closed"));
+                return entry.future;
+            }
+            List<Object> key = key(message, json);
+            Batch batch = batches.get(key);
+            if (batch != null && batch.overlaps(entry)) {
+                ready.add(detach(key, batch));
+                batch = null;
+            }
+            if (batch == null) {
+                Batch created = batch = new Batch();
+                batches.put(key, batch);
+                batch.timer = scheduler.schedule(() -> flush(key, created), windowNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.add(entry);
+            if (batch.recipients >= maxRecipients) {
+                ready.add(detach(key, batch));
+            }
+        }
+        ready.forEach(MandrillCoalescingSender::dispatch);
+        return entry.future;
+    }
+
+    public void flush() {
+        List<Batch> ready;
+        synchronized (batches) {
+            ready = new ArrayList<>(batches.values());
+            ready.forEach(batch -> batch.timer.cancel(false));
+            batches.clear();
+        }
+        ready.forEach(MandrillCoalescingSender::dispatch);
+    }
+
+    @Override
+    public void close() {
+        synchronized (batches) {
+            closed = true;
+        }
+        flush();
+        scheduler.shutdown();
+    }
+
+    private void flush(List<Object> key, Batch batch) {
+        synchronized (batches) {
+            if (batches.get(key) != batch) return;
+            batches.remove(key);
+        }
+        dispatch(batch);
+    }
+
+    private Batch detach(List<Object> key, Batch batch) {
+        batches.remove(key);
+        batch.timer.cancel(false);
+        return batch;
+    }
+
+    private static List<Object> key(MandrillMessage message, JsonObject json) {
+        JsonObjectBuilder shared = Json.createObjectBuilder();
+        json.forEach((name, value) -> {
+            if (!PER_RECIPIENT_FIELDS.contains(name)) shared.add(name, value);
+        });
+        return Arrays.asList(message.getClient(), message.getConfig().getApiKey(), message.getSlug(), shared.build());
+    }
+
+    // a batch which cannot be sent fails all its entries instead of leaving them pending
+    private static void dispatch(Batch batch) {
+        try {
+            send(batch);
+        } catch (RuntimeException e) {
+            batch.entries.forEach(entry -> entry.future.completeExceptionally(e));
+        }
+    }
+
+    private static void send(Batch batch) {
+        Entry first = batch.entries.get(0);
+        if (batch.entries.size() == 1) {
+            first.message.sendAsync(first.json).whenComplete((results, error) -> {
+                if (error != null) first.future.completeExceptionally(error);
+                else first.future.complete(results);
+            });
+            return;
+        }
+        JsonObjectBuilder merged = Json.createObjectBuilder();
+        first.json.forEach((name, value) -> {
+            if (!PER_RECIPIENT_FIELDS.contains(name)) merged.add(name, value);
+        });
+        JsonArrayBuilder tos = Json.createArrayBuilder();
+        JsonArrayBuilder mergeVars = Json.createArrayBuilder();
+        Map<String, Entry> byEmail = new HashMap<>();
+        for (Entry entry : batch.entries) {
+            for (JsonValue to : entry.json.getJsonArray("to")) {
+                String email = ((JsonObject) to).getString("email");
+                tos.add(to);
+                mergeVars.add(Json.createObjectBuilder()
+                    .add("rcpt", email)
+                    .add("vars", entry.varsOf(email)));
+                byEmail.put(email.toLowerCase(Locale.ROOT), entry);
+            }
+        }
+        merged
+            .add("to", tos)
+            .add("global_merge_vars", Json.createArrayBuilder())
+            .add("merge_vars", mergeVars);
+        first.message.sendAsync(merged.build()).whenComplete((results, error) -> {
+            if (error != null) {
+                batch.entries.forEach(entry -> entry.future.completeExceptionally(error));
+                return;
+            }
+            Map<Entry, List<MandrillSendResult>> demux = new IdentityHashMap<>();
+            batch.entries.forEach(entry -> demux.put(entry, new ArrayList<>()));
+            for (MandrillSendResult result : results) {
+                Entry entry = result.getEmail() == null ? null : byEmail.get(result.getEmail().toLowerCase(Locale.ROOT));
+                if (entry != null) demux.get(entry).add(result);
+            }
+            demux.forEach((entry, list) -> entry.future.complete(list));
+        });
+    }
+
+    private static final class Batch {
+        final List<Entry> entries = new ArrayList<>();
+        final Set<String> emails = new HashSet<>();
+        int recipients;
+        ScheduledFuture<?> timer;
+
+        boolean overlaps(Entry entry) {
+            for (String email : entry.emails) {
+                if (emails.contains(email)) return true;
+            }
+            return false;
+        }
+
+        void add(Entry entry) {
+            entries.add(entry);
+            emails.addAll(entry.emails);
+            recipients += entry.emails.size();
+        }
+    }
+
+    private static final class Entry {
+        final MandrillMessage message;
+        final JsonObject json;
+        final Set<String> emails = new HashSet<>();
+        final CompletableFuture<List<MandrillSendResult>> future = new CompletableFuture<>();
+
+        Entry(MandrillMessage message, JsonObject json) {
+            this.message = message;
+            this.json = json;
+            for (JsonValue to : json.getJsonArray("to")) {
+                emails.add(((JsonObject) to).getString("email").toLowerCase(Locale.ROOT));
+            }
+        }
+
+        // recipient vars first, then the global vars they do not override
+        JsonArrayBuilder varsOf(String email) {
+            JsonArrayBuilder vars = Json.createArrayBuilder();
+            Set<String> names = new HashSet<>();
+            for (JsonValue value : json.getJsonArray("merge_vars")) {
+                JsonObject rcpt = (JsonObject) value;
+                if (rcpt.getString("rcpt").equalsIgnoreCase(email)) {
+                    for (JsonValue var : rcpt.getJsonArray("vars")) {
+                        vars.add(var);
+                        names.add(((JsonObject) var).getString("name").toUpperCase(Locale.ROOT));
+                    }
+                }
+            }
+            for (JsonValue var : json.getJsonArray("global_merge_vars")) {
+                if (!names.contains(((JsonObject) var).getString("name").toUpperCase(Locale.ROOT))) {
+                    vars.add(var);
+                }
+            }
+            return vars;
+        }
+    }
+
+}
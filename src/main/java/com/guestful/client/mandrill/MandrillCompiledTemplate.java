@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Template source compiled into a flat list of segments (literal text, merge tag, conditional jumps)
+ * and rendered in a single pass. Supports the Mandrill merge tags {@code *|VAR|*} and the conditionals
+ * {@code *|IF:VAR|*}, {@code *|ELSEIF:VAR|*}, {@code *|ELSE:|*}, {@code *|END:IF|*}. Any other construct
+ * makes {@link #compile(String)} fail so that the caller can render remotely instead.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class MandrillCompiledTemplate {
+
+    // merge tags filled in by Mandrill itself
+    private static final Set<String> BUILT_IN = new HashSet<>(Arrays.asList(
+        "UNSUB", "UPDATE_PROFILE", "FORWARD", "ARCHIVE", "CURRENT_YEAR", "EMAIL", "LIST_NAME", "REWARDS", "MC_PREVIEW_TEXT", "SUBJECT"));
+
+    private static final byte TEXT = 0;
+    private static final byte VAR = 1;
+    private static final byte JUMP_IF_FALSE = 2;
+    private static final byte JUMP = 3;
+
+    private final byte[] ops;
+    private final String[] args;
+    private final int[] targets;
+    private final int capacity;
+
+    private MandrillCompiledTemplate(byte[] ops, String[] args, int[] targets, int capacity) {
+        this.ops = ops;
+        this.args = args;
+        this.targets = targets;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param vars merge variable values, looked up by upper-cased name
+     */
+    public String render(Function<String, String> vars) {
+        StringBuilder sb = new StringBuilder(capacity);
+        for (int i = 0; i < ops.length; ) {
+            switch (ops[i]) {
+                case TEXT:
+                    sb.append(args[i++]);
+                    break;
+                case VAR:
+                    String value = vars.apply(args[i++]);
+                    if (value != null) sb.append(value);
+                    break;
+                case JUMP_IF_FALSE:
+                    String condition = vars.apply(args[i]);
+                    i = condition == null || condition.isEmpty() ? targets[i] : i + 1;
+                    break;
+                default:
+                    i = targets[i];
+            }
+        }
+        return sb.toString();
+    }
+
+    public static MandrillCompiledTemplate compile(String source) throws IllegalArgumentException {
+        if (source.contains("{{")) throw new IllegalArgumentException("Handlebars templates are not supported");
+        Compiler compiler = new Compiler();
+        int literals = 0;
+        int pos = 0;
+        while (pos < source.length()) {
+            int start = source.indexOf("*|", pos);
+            int end = start < 0 ? -1 : source.indexOf("|*", start + 2);
+            if (end < 0) {
+                compiler.emit(TEXT, source.substring(pos), -1);
+                literals += source.length() - pos;
+                break;
+            }
+            if (start > pos) {
+                compiler.emit(TEXT, source.substring(pos, start), -1);
+                literals += start - pos;
+            }
+            compiler.tag(source.substring(start + 2, end));
+            pos = end + 2;
+        }
+        if (!compiler.frames.isEmpty()) throw new IllegalArgumentException("Missing *|END:IF|*");
+        return new MandrillCompiledTemplate(
+            Arrays.copyOf(compiler.ops, compiler.size),
+            Arrays.copyOf(compiler.args, compiler.size),
+            Arrays.copyOf(compiler.targets, compiler.size),
+            literals + literals / 4);
+    }
+
+    private static final class Compiler {
+        byte[] ops = new byte[16];
+        String[] args = new String[16];
+        int[] targets = new int[16];
+        int size;
+        final Deque<Frame> frames = new ArrayDeque<>();
+
+        void tag(String tag) {
+            String upper = tag.toUpperCase(Locale.ROOT);
+            if (upper.startsWith("IF:")) {
+                Frame frame = new Frame();
+                frame.pending = emit(JUMP_IF_FALSE, name(tag.substring(3)), -1);
+                frames.push(frame);
+            } else if (upper.startsWith("ELSEIF:")) {
+                Frame frame = frame(tag);
+                frame.ends.add(emit(JUMP, null, -1));
+                targets[frame.pending] = size;
+                frame.pending = emit(JUMP_IF_FALSE, name(tag.substring(7)), -1);
+            } else if (upper.equals("ELSE:")) {
+                Frame frame = frame(tag);
+                frame.ends.add(emit(JUMP, null, -1));
+                targets[frame.pending] = size;
+                frame.pending = -1;
+            } else if (upper.equals("END:IF")) {
+                Frame frame = frame(tag);
+                frames.pop();
+                if (frame.pending >= 0) targets[frame.pending] = size;
+                frame.ends.forEach(i -> targets[i] = size);
+            } else {
+                emit(VAR, name(tag), -1);
+            }
+        }
+
+        int emit(byte op, String arg, int target) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                args = Arrays.copyOf(args, size * 2);
+                targets = Arrays.copyOf(targets, size * 2);
+            }
+            ops[size] = op;
+            args[size] = arg;
+            targets[size] = target;
+            return size++;
+        }
+
+        Frame frame(String tag) {
+            Frame frame = frames.peek();
+            if (frame == null || frame.pending < 0 && !tag.equalsIgnoreCase("END:IF")) throw new IllegalArgumentException("Unexpected *|" + tag + "|*");
+            return frame;
+        }
+
+        static String name(String tag) {
+            if (tag.isEmpty()) throw new IllegalArgumentException("Empty merge tag");
+            for (int i = 0; i < tag.length(); i++) {
+                char c = tag.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-')) {
+                    throw new IllegalArgumentException("Unsupported merge tag: *|" + tag + "|*");
+                }
+            }
+            String name = tag.toUpperCase(Locale.ROOT);
+            if (BUILT_IN.contains(name) || name.startsWith("MC_")) throw new IllegalArgumentException("Unsupported merge tag: *|" + tag + "|*");
+            return name;
+        }
+    }
+
+    private static final class Frame {
+        int pending;
+        final List<Integer> ends = new ArrayList<>(2);
+    }
+
+}
@@ -25,6 +25,7 @@ import java.util.TreeSet;
 public class MandrillConfig {
 
     private String apiKey;
+    private String subaccount;
     private String signingDomain;
     private boolean preserveRecipients = false;
     private boolean async = true;
@@ -33,10 +34,15 @@ public class MandrillConfig {
     private boolean trackOpens = true;
     private boolean trackClicks = true;
     private final Collection<String> tags = new TreeSet<>();
+    private double rateLimit;
+    private int rateLimitBurst = 1;
+    private MandrillRetryPolicy retryPolicy;
+    private int compressionThreshold;
 
     public MandrillConfig copy() {
         return new MandrillConfig()
             .setApiKey(apiKey)
+            .setSubaccount(subaccount)
             .setSigningDomain(signingDomain)
             .setPreserveRecipients(preserveRecipients)
             .setAsync(async)
@@ -44,7 +50,11 @@ public class MandrillConfig {
             .setTrackingDomain(trackingDomain)
             .setTrackOpens(trackOpens)
             .setTrackClicks(trackClicks)
-            .addTags(tags);
+            .addTags(tags)
+            .setRateLimit(rateLimit)
+            .setRateLimitBurst(rateLimitBurst)
+            .setRetryPolicy(retryPolicy)
+            .setCompressionThreshold(compressionThreshold);
     }
 
     public boolean isAsync() {
@@ -65,6 +75,15 @@ public class MandrillConfig {
         return this;
     }
 
+    public String getSubaccount() {
+        return subaccount;
+    }
+
+    public MandrillConfig setSubaccount(String subaccount) {
+        this.subaccount = subaccount;
+        return this;
+    }
+
     public String getSigningDomain() {
         return signingDomain;
     }
@@ -119,6 +138,51 @@ public class MandrillConfig {
         return this;
     }
 
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Maximum number of requests per second sent by a client using this configuration, 0 meaning unlimited
+     */
+    public MandrillConfig setRateLimit(double rateLimit) {
+        if (rateLimit < 0) throw new IllegalArgumentException("rateLimit: " + rateLimit);
+        this.rateLimit = rateLimit;
+        return this;
+    }
+
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public MandrillConfig setRateLimitBurst(int rateLimitBurst) {
+        if (rateLimitBurst < 1) throw new IllegalArgumentException("rateLimitBurst: " + rateLimitBurst);
+        this.rateLimitBurst = rateLimitBurst;
+        return this;
+    }
+
+    public MandrillRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    public MandrillConfig setRetryPolicy(MandrillRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Size in bytes above which the request bodies are gzip-compressed, 0 meaning never
+     */
+    public MandrillConfig setCompressionThreshold(int compressionThreshold) {
+        if (compressionThreshold < 0) throw new IllegalArgumentException("compressionThreshold: " + compressionThreshold);
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
     public Collection<String> getTags() {
         return tags;
     }
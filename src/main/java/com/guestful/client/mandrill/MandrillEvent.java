@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.stream.JsonParser;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A message event posted by Mandrill to a webhook, keeping only the fields needed to handle it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class MandrillEvent {
+
+    private static final String[] NO_TAGS = new String[0];
+
+    public enum Type {
+        SEND, DEFERRAL, HARD_BOUNCE, SOFT_BOUNCE, OPEN, CLICK, SPAM, UNSUB, REJECT, OTHER;
+
+        static Type of(String type) {
+            switch (type) {
+                case "send":
+                    return SEND;
+                case "deferral":
+                    return DEFERRAL;
+                case "hard_bounce":
+                    return HARD_BOUNCE;
+                case "soft_bounce":
+                    return SOFT_BOUNCE;
+                case "open":
+                    return OPEN;
+                case "click":
+                    return CLICK;
+                case "spam":
+                    return SPAM;
+                case "unsub":
+                    return UNSUB;
+                case "reject":
+                    return REJECT;
+                default:
+                    return OTHER;
+            }
+        }
+    }
+
+    private Type type = Type.OTHER;
+    private long timestamp;
+    private String id;
+    private String email;
+    private String sender;
+    private String subject;
+    private String state;
+    private String[] tags = NO_TAGS;
+    private String url;
+    private String ip;
+    private String userAgent;
+    private String bounceDescription;
+
+    MandrillEvent() {
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the time of the event, in seconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the Mandrill message id, as returned by {@link MandrillSendResult#getId()}
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the message state, i.e. 'sent', 'bounced', 'rejected'...
+     */
+    public String getState() {
+        return state;
+    }
+
+    public String[] getTags() {
+        return tags.clone();
+    }
+
+    public boolean hasTag(String tag) {
+        for (String t : tags) {
+            if (t.equals(tag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the clicked URL of a click event
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    public String getBounceDescription() {
+        return bounceDescription;
+    }
+
+    String[] tags() {
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return type.name().toLowerCase(Locale.ROOT) + " " + email + " " + id + (tags.length == 0 ? "" : " " + Arrays.toString(tags));
+    }
+
+    /**
+     * Reads an event, the parser being just after its START_OBJECT
+     */
+    static MandrillEvent read(JsonParser parser) {
+        MandrillEvent event = new MandrillEvent();
+        for (JsonParser.Event next = parser.next(); next != JsonParser.Event.END_OBJECT; next = parser.next()) {
+            String key = parser.getString();
+            next = parser.next();
+            if (next == JsonParser.Event.START_OBJECT && "msg".equals(key)) {
+                event.readMessage(parser);
+            } else if (next == JsonParser.Event.VALUE_NUMBER && "ts".equals(key)) {
+                event.timestamp = parser.getLong();
+            } else if (next == JsonParser.Event.VALUE_STRING) {
+                switch (key) {
+                    case "event":
+                        event.type = Type.of(parser.getString());
+                        break;
+                    case "_id":
+                        event.id = parser.getString();
+                        break;
+                    case "url":
+                        event.url = parser.getString();
+                        break;
+                    case "ip":
+                        event.ip = parser.getString();
+                        break;
+                    case "user_agent":
+                        event.userAgent = parser.getString();
+                        break;
+                    default:
+                        break;
+                }
+            } else {
+                MandrillSendResult.skip(parser, next);
+            }
+        }
+        return event;
+    }
+
+    private void readMessage(JsonParser parser) {
+        for (JsonParser.Event next = parser.next(); next != JsonParser.Event.END_OBJECT; next = parser.next()) {
+            String key = parser.getString();
+            next = parser.next();
+            if (next == JsonParser.Event.START_ARRAY && "tags".equals(key)) {
+                readTags(parser);
+            } else if (next == JsonParser.Event.VALUE_STRING) {
+                switch (key) {
+                    case "_id":
+                        if (id == null) id = parser.getString();
+                        break;
+                    case "email":
+                        email = parser.getString();
+                        break;
+                    case "sender":
+                        sender = parser.getString();
+                        break;
+                    case "subject":
+                        subject = parser.getString();
+                        break;
+                    case "state":
+                        state = parser.getString();
+                        break;
+                    case "bounce_description":
+                        bounceDescription = parser.getString();
+                        break;
+                    default:
+                        break;
+                }
+            } else {
+                MandrillSendResult.skip(parser, next);
+            }
+        }
+    }
+
+    private void readTags(JsonParser parser) {
+        String[] tags = NO_TAGS;
+        int count = 0;
+        for (JsonParser.Event next = parser.next(); next != JsonParser.Event.END_ARRAY; next = parser.next()) {
+            if (next != JsonParser.Event.VALUE_STRING) {
+                MandrillSendResult.skip(parser, next);
+                continue;
+            }
+            if (count == tags.length) tags = Arrays.copyOf(tags, Math.max(4, count * 2));
+            tags[count++] = parser.getString();
+        }
+        this.tags = count == tags.length ? tags : Arrays.copyOf(tags, count);
+    }
+
+}
@@ -15,20 +15,34 @@
  */
 package com.guestful.client.mandrill;
 
+import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonStructure;
 import javax.ws.rs.core.Response;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class MandrillException extends RuntimeException {
 
+    // Mandrill reports most errors with a 500 status: these names will fail again whatever the number of attempts
+    private static final Set<String> PERMANENT_ERRORS = new HashSet<>(Arrays.asList(
+        "Invalid_Key", "ValidationError", "PaymentRequired", "Unknown_Subaccount", "Unknown_Template", "Invalid_Template",
+        "Unknown_Sender", "Unknown_Url", "Unknown_TrackingDomain", "Invalid_Tag_Name", "Invalid_Reject", "Unknown_Message"));
+
     private final Response.StatusType statusType;
     private final String response;
     private final JsonObject body;
+    private final String name;
 
-    MandrillException(Response response, JsonObject body) {
-        this(response.getStatusInfo(), response.readEntity(String.class), body);
+    MandrillException(MandrillResponse response, JsonObject body) {
+        this(response.getStatusInfo(), response.readString(), body);
     }
 
     private MandrillException(Response.StatusType statusType, String response, JsonObject body) {
@@ -36,6 +50,15 @@ public class MandrillException extends RuntimeException {
         this.statusType = statusType;
         this.response = response;
         this.body = body;
+        this.name = parseName(response);
+    }
+
+    MandrillException(String message, Response.StatusType statusType) {
+        super(message);
+        this.statusType = statusType;
+        this.response = null;
+        this.body = null;
+        this.name = null;
     }
 
     public Response.StatusType getStatusType() {
@@ -50,4 +73,34 @@ public class MandrillException extends RuntimeException {
         return body;
     }
 
+    /**
+     * @return The Mandrill error name found in the response (i.e. 'ValidationError', 'Invalid_Key', ...), or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRateLimited() {
+        return statusType.getStatusCode() == 429 || "Too_Many_Requests".equals(name);
+    }
+
+    /**
+     * @return true if sending the same request again later may succeed
+     */
+    public boolean isRetryable() {
+        if (isRateLimited()) return true;
+        if (statusType.getFamily() != Response.Status.Family.SERVER_ERROR) return false;
+        return name == null || !PERMANENT_ERRORS.contains(name);
+    }
+
+    private static String parseName(String response) {
+        if (response == null || response.isEmpty()) return null;
+        try (JsonReader reader = Json.createReader(new StringReader(response))) {
+            JsonStructure structure = reader.read();
+            return structure instanceof JsonObject ? ((JsonObject) structure).getString("name", null) : null;
+        } catch (JsonException e) {
+            return null;
+        }
+    }
+
 }
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.ws.rs.ProcessingException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the requests with the JDK {@link HttpURLConnection}, without needing any JAX-RS implementation.
+ * <p>
+ * Connections are kept alive and reused by the JDK connection cache (see the 'http.keepAlive' and
+ * 'http.maxConnections' system properties) as long as each response is closed. Requests are run on the
+ * given executor, or on a cached pool of daemon threads by default.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillHttpTransport implements MandrillTransport {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private String baseUri = DEFAULT_BASE_URI;
+    private int connectTimeout = 10_000;
+    private int readTimeout = 60_000;
+    private volatile Executor executor;
+    private ExecutorService ownExecutor;
+
+    public String getBaseUri() {
+        return baseUri;
+    }
+
+    public MandrillHttpTransport setBaseUri(String baseUri) {
+        this.baseUri = baseUri.endsWith("/") ? baseUri.substring(0, baseUri.length() - 1) : baseUri;
+        return this;
+    }
+
+    public long getConnectTimeout(TimeUnit unit) {
+        return unit.convert(connectTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout 0 to wait forever
+     */
+    public MandrillHttpTransport setConnectTimeout(long timeout, TimeUnit unit) {
+        this.connectTimeout = toMillis(timeout, unit);
+        return this;
+    }
+
+    public long getReadTimeout(TimeUnit unit) {
+        return unit.convert(readTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout 0 to wait forever
+     */
+    public MandrillHttpTransport setReadTimeout(long timeout, TimeUnit unit) {
+        this.readTimeout = toMillis(timeout, unit);
+        return this;
+    }
+
+    public MandrillHttpTransport setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    @Override
+    public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+        CompletableFuture<MandrillResponse> future = new CompletableFuture<>();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    future.complete(exchange(method, path, entity));
+                } catch (IOException e) {
+                    future.completeExceptionally(new ProcessingException(method + " " + path + " : " + e.getMessage(), e));
+                } catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+            executor = null;
+        }
+    }
+
+    private MandrillResponse exchange(String method, String path, Entity entity) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUri + "/" + path).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setUseCaches(false);
+            connection.setRequestProperty("Accept", "application/json");
+            if (entity != null) {
+                connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+                String encoding = entity.getContentEncoding();
+                if (encoding != null) connection.setRequestProperty("Content-Encoding", encoding);
+                connection.setDoOutput(true);
+                // stream the body instead of buffering it in the connection
+                connection.setChunkedStreamingMode(0);
+                try (OutputStream out = connection.getOutputStream()) {
+                    entity.writeTo(out);
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            // closing the entity stream, not disconnecting, gives the connection back to the keep-alive cache
+            return new MandrillResponse(status, connection.getResponseMessage(), in, null);
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private Executor getExecutor() {
+        Executor executor = this.executor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.executor;
+                if (executor == null) {
+                    this.executor = executor = ownExecutor = Executors.newCachedThreadPool(r -> {
+                        Thread thread = new Thread(r, "mandrill-http-" + THREADS.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+        return executor;
+    }
+
+    private static int toMillis(long timeout, TimeUnit unit) {
+        if (timeout < 0) throw new IllegalArgumentException("timeout must be positive");
+        return (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+    }
+
+}
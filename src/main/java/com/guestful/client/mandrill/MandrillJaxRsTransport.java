@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Sends the requests through a JAX-RS client and its async invoker.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillJaxRsTransport implements MandrillTransport {
+
+    private final WebTarget target;
+
+    public MandrillJaxRsTransport(Client client) {
+        this(client.target(DEFAULT_BASE_URI));
+    }
+
+    public MandrillJaxRsTransport(WebTarget target) {
+        this.target = target;
+    }
+
+    public WebTarget getTarget() {
+        return target;
+    }
+
+    @Override
+    public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+        CompletableFuture<MandrillResponse> future = new CompletableFuture<>();
+        try {
+            Variant variant = new Variant(MediaType.APPLICATION_JSON_TYPE, (String) null, entity.getContentEncoding());
+            target
+                .path(path)
+                .request(MediaType.APPLICATION_JSON_TYPE)
+                .async()
+                .method(method, javax.ws.rs.client.Entity.entity((StreamingOutput) entity::writeTo, variant), new InvocationCallback<Response>() {
+                    @Override
+                    public void completed(Response response) {
+                        try {
+                            InputStream in = response.hasEntity() ? response.readEntity(InputStream.class) : null;
+                            future.complete(new MandrillResponse(response.getStatus(), response.getStatusInfo().getReasonPhrase(), in, response::close));
+                        } catch (RuntimeException e) {
+                            response.close();
+                            future.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable throwable) {
+                        future.completeExceptionally(throwable);
+                    }
+                });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+}
@@ -16,14 +16,23 @@
 package com.guestful.client.mandrill;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 import javax.ws.rs.HttpMethod;
-import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Path;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -38,13 +47,31 @@ public class MandrillMessage {
     private String html;
     private String text;
     private final Collection<MandrillAddress> tos = new ArrayList<>();
-    private final MandrillVars globalMergeVars = new MandrillVars();
+    private final MandrillVars globalMergeVars;
     private final Map<String, MandrillVars> mergeVars = new TreeMap<>();
     private String slug;
+    private final List<MandrillAttachment> attachments = new ArrayList<>(0);
+    private final List<MandrillAttachment> images = new ArrayList<>(0);
 
     MandrillMessage(MandrillClient client) {
         this.client = client;
         this.config = client.getConfig().copy();
+        this.globalMergeVars = new MandrillVars();
+    }
+
+    private MandrillMessage(MandrillMessage message) {
+        this.client = message.client;
+        this.config = message.config.copy();
+        this.from = message.from;
+        this.subject = message.subject;
+        this.html = message.html;
+        this.text = message.text;
+        this.tos.addAll(message.tos);
+        this.globalMergeVars = message.globalMergeVars.copy();
+        message.mergeVars.forEach((email, vars) -> mergeVars.put(email, vars.copy()));
+        this.slug = message.slug;
+        this.attachments.addAll(message.attachments);
+        this.images.addAll(message.images);
     }
 
     public String getSlug() {
@@ -55,6 +82,17 @@ public class MandrillMessage {
         return client;
     }
 
+    /**
+     * @return a copy of this message as it is now, sharing the strings and attachment files but not the collections and merge vars
+     */
+    MandrillMessage snapshot() {
+        return new MandrillMessage(this);
+    }
+
+    MandrillConfig getConfig() {
+        return config;
+    }
+
     public MandrillMessage preserveRecipients(boolean preserveRecipients) {
         config.setPreserveRecipients(preserveRecipients);
         return this;
@@ -101,7 +139,7 @@ public class MandrillMessage {
 
     public MandrillMessage from(String name, String email) {
         if (email != null) {
-            from = new MandrillAddress(name, email);
+            from = MandrillAddress.intern(name, email);
         }
         return this;
     }
@@ -112,7 +150,7 @@ public class MandrillMessage {
     }
 
     public MandrillMessage from(String email) {
-        this.from = new MandrillAddress(email);
+        this.from = MandrillAddress.intern(email);
         return this;
     }
 
@@ -136,6 +174,34 @@ public class MandrillMessage {
         return this;
     }
 
+    /**
+     * Attaches a file, read only when the message is sent
+     */
+    public MandrillMessage attach(Path file, String mimeType) {
+        return attach(file.getFileName().toString(), file, mimeType);
+    }
+
+    public MandrillMessage attach(String name, Path file, String mimeType) {
+        attachments.add(new MandrillAttachment(mimeType, name, file));
+        return this;
+    }
+
+    /**
+     * Embeds an image, referenced in the html as 'cid:' + cid
+     */
+    public MandrillMessage image(String cid, Path file) {
+        return image(cid, file, MandrillAttachment.probeContentType(file));
+    }
+
+    public MandrillMessage image(String cid, Path file, String mimeType) {
+        images.add(new MandrillAttachment(mimeType, cid, file));
+        return this;
+    }
+
+    boolean hasAttachments() {
+        return !attachments.isEmpty() || !images.isEmpty();
+    }
+
     public MandrillMessage tos(Collection<MandrillAddress> addresses) {
         tos.addAll(addresses);
         return this;
@@ -234,6 +300,7 @@ public class MandrillMessage {
             .add("merge_vars", _merge_vars);
         if (config.getBccAddress() != null) message.add("bcc_address", config.getBccAddress());
         if (config.getSigningDomain() != null) message.add("signing_domain", config.getSigningDomain());
+        if (config.getSubaccount() != null) message.add("subaccount", config.getSubaccount());
         if (from != null && from.getName() != null) message.add("from_name", from.getName());
         if (from != null && from.getEmail() != null) message.add("from_email", from.getEmail());
         if (subject != null) message.add("subject", subject);
@@ -242,32 +309,203 @@ public class MandrillMessage {
         }
         if (text != null) message.add("text", text);
         if (html != null) message.add("html", html);
+        if (!attachments.isEmpty()) {
+            JsonArrayBuilder _attachments = Json.createArrayBuilder();
+            attachments.forEach(attachment -> _attachments.add(attachment.toJson()));
+            message.add("attachments", _attachments);
+        }
+        if (!images.isEmpty()) {
+            JsonArrayBuilder _images = Json.createArrayBuilder();
+            images.forEach(image -> _images.add(image.toJson()));
+            message.add("images", _images);
+        }
 
         return message.build();
     }
 
-    public void send() throws MandrillException {
-        send(toJson());
+    void writeTo(JsonGenerator generator) {
+        try {
+            writeTo(generator, Collections.emptySet(), null, config.getSubaccount());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    public void send(JsonObject message) throws MandrillException {
-        JsonObjectBuilder bodyBuilder = Json.createObjectBuilder()
-            .add("key", config.getApiKey())
-            .add("message", message);
-        if (slug != null) {
-            bodyBuilder.add("template_name", slug);
-            bodyBuilder.add("template_content", Json.createArrayBuilder());
+    /**
+     * @param excluded lower-cased emails of the recipients to leave out
+     * @param raw      the stream the generator writes to, to stream the attachments, or null
+     */
+    private void writeTo(JsonGenerator generator, Set<String> excluded, OutputStream raw, String subaccount) throws IOException {
+        writeSharedTo(generator, raw, subaccount);
+        generator.writeStartArray("to");
+        tos.forEach(to -> {
+            if (excluded.isEmpty() || !excluded.contains(to.getEmail().toLowerCase(Locale.ROOT))) to.writeTo(generator);
+        });
+        generator.writeEnd();
+        generator.writeStartArray("merge_vars");
+        mergeVars.forEach((k, v) -> {
+            if (!excluded.isEmpty() && excluded.contains(k.toLowerCase(Locale.ROOT))) return;
+            generator.writeStartObject().write("rcpt", k);
+            v.writeTo(generator, "vars");
+            generator.writeEnd();
+        });
+        generator.writeEnd();
+    }
+
+    // all the fields but the recipients and their merge vars
+    private void writeSharedTo(JsonGenerator generator, OutputStream raw, String subaccount) throws IOException {
+        generator.writeStartArray("tags");
+        config.getTags().forEach(generator::write);
+        generator.writeEnd();
+        generator
+            .write("preserve_recipients", config.isPreserveRecipients())
+            .write("track_opens", config.isTrackOpens())
+            .write("track_clicks", config.isTrackClicks());
+        getGlobalMergeVars().writeTo(generator, "global_merge_vars");
+        if (config.getBccAddress() != null) generator.write("bcc_address", config.getBccAddress());
+        if (config.getSigningDomain() != null) generator.write("signing_domain", config.getSigningDomain());
+        if (subaccount != null) generator.write("subaccount", subaccount);
+        if (from != null && from.getName() != null) generator.write("from_name", from.getName());
+        if (from != null && from.getEmail() != null) generator.write("from_email", from.getEmail());
+        if (subject != null) generator.write("subject", subject);
+        if (text != null || html != null) {
+            generator.write("merge", false);
         }
-        JsonObject body = bodyBuilder.build();
-        String uri = body.containsKey("template_name") ? "messages/send-template.json" : "messages/send.json";
-        Response response = getClient().request(HttpMethod.POST, uri, body);
-        try {
-            if (response.getStatus() != 200) {
-                throw new MandrillException(response, body);
+        if (text != null) generator.write("text", text);
+        if (html != null) generator.write("html", html);
+        if (!attachments.isEmpty()) {
+            generator.writeStartArray("attachments");
+            for (MandrillAttachment attachment : attachments) attachment.writeTo(generator, raw);
+            generator.writeEnd();
+        }
+        if (!images.isEmpty()) {
+            generator.writeStartArray("images");
+            for (MandrillAttachment image : images) image.writeTo(generator, raw);
+            generator.writeEnd();
+        }
+    }
+
+    /**
+     * Creates an immutable prototype of this message, with everything but the recipients pre-serialized.
+     * Recipients and their merge vars are then given to each {@link MandrillMessagePrototype#instance()}.
+     */
+    public MandrillMessagePrototype freeze() {
+        if (!tos.isEmpty() || !mergeVars.isEmpty()) throw new IllegalStateException("Recipients must be set on the prototype instances");
+        // the API key is part of the pre-serialized body: prototypes are routed once, without recipient
+        MandrillShard shard = route(null);
+        String apiKey = apiKey(shard);
+        String subaccount = subaccount(shard);
+        return new MandrillMessagePrototype(client, slug, sendUri(), shard, MandrillRequestBody.streaming((generator, raw) -> {
+            writeBodyStart(generator, apiKey);
+            writeSharedTo(generator, raw, subaccount);
+            generator.writeEnd();
+            generator.writeEnd();
+        }));
+    }
+
+    public List<MandrillSendResult> send() throws MandrillException {
+        return MandrillClient.join(sendAsync());
+    }
+
+    public List<MandrillSendResult> send(JsonObject message) throws MandrillException {
+        return MandrillClient.join(sendAsync(message));
+    }
+
+    /**
+     * Sends the message at the given time through the client timing wheel. Cancelling the returned future before then
+     * removes the message from the wheel.
+     */
+    public CompletableFuture<List<MandrillSendResult>> sendAt(Instant at) {
+        return getClient().getTimingWheel().schedule(this, at);
+    }
+
+    /**
+     * The body is streamed to Mandrill later on, from a snapshot of this message: it can be modified and sent again
+     * as soon as this method returns.
+     *
+     * @return the result of each recipient, including the ones left out by the client suppression list
+     */
+    public CompletionStage<List<MandrillSendResult>> sendAsync() {
+        MandrillSuppressionList suppressionList = getClient().getSuppressionList();
+        MandrillShard shard = route(tos.isEmpty() ? null : tos.iterator().next().getEmail());
+        MandrillMessage snapshot = snapshot();
+        if (suppressionList == null) {
+            return getClient().requestAsync(HttpMethod.POST, sendUri(), slug, shard, snapshot.sendBody(shard, Collections.emptySet())).thenApply(MandrillSendResult::read);
+        }
+        List<MandrillSendResult> suppressed = suppressionList.suppressed(tos);
+        if (!suppressed.isEmpty() && suppressed.size() == tos.size()) {
+            return CompletableFuture.completedFuture(suppressed);
+        }
+        Set<String> excluded = suppressed.isEmpty() ? Collections.emptySet() : MandrillSuppressionList.emails(suppressed);
+        CompletionStage<List<MandrillSendResult>> sent = getClient().requestAsync(HttpMethod.POST, sendUri(), slug, shard, snapshot.sendBody(shard, excluded)).thenApply(MandrillSendResult::read);
+        return suppressionList.complete(sent, suppressed);
+    }
+
+    public CompletionStage<List<MandrillSendResult>> sendAsync(JsonObject message) {
+        MandrillSuppressionList suppressionList = getClient().getSuppressionList();
+        List<MandrillSendResult> suppressed = Collections.emptyList();
+        if (suppressionList != null && message.containsKey("to")) {
+            JsonArrayBuilder tos = Json.createArrayBuilder();
+            for (JsonValue value : message.getJsonArray("to")) {
+                String email = ((JsonObject) value).getString("email", null);
+                if (email != null && suppressionList.contains(email)) {
+                    if (suppressed.isEmpty()) suppressed = new ArrayList<>(2);
+                    suppressed.add(MandrillSuppressionList.rejected(email));
+                } else {
+                    tos.add(value);
+                }
             }
-        } finally {
-            response.close();
+            if (!suppressed.isEmpty()) {
+                if (suppressed.size() == message.getJsonArray("to").size()) {
+                    return CompletableFuture.completedFuture(suppressed);
+                }
+                message = withoutRecipients(message, tos, MandrillSuppressionList.emails(suppressed));
+            }
+        }
+        JsonArray recipients = message.getJsonArray("to");
+        MandrillShard shard = route(recipients == null || recipients.isEmpty() ? null : recipients.getJsonObject(0).getString("email", null));
+        if (shard != null && shard.getSubaccount() != null && !shard.getSubaccount().equals(message.getString("subaccount", null))) {
+            JsonObjectBuilder routed = Json.createObjectBuilder();
+            message.forEach(routed::add);
+            message = routed.add("subaccount", shard.getSubaccount()).build();
         }
+        JsonObject body = buildSendBody(message, apiKey(shard));
+        CompletionStage<List<MandrillSendResult>> sent = getClient().requestAsync(HttpMethod.POST, sendUri(body), slug, shard, body).thenApply(MandrillSendResult::read);
+        return suppressionList == null ? sent : suppressionList.complete(sent, suppressed);
+    }
+
+    /**
+     * @return the shard chosen by the client router, which API key and subaccount are used for this one request, or null
+     */
+    private MandrillShard route(String recipient) {
+        MandrillShardRouter router = getClient().getShardRouter();
+        return router == null ? null : router.route(config.getTags(), from == null ? null : from.getEmail(), recipient);
+    }
+
+    private String apiKey(MandrillShard shard) {
+        return shard == null ? config.getApiKey() : shard.getApiKey();
+    }
+
+    private String subaccount(MandrillShard shard) {
+        return shard == null || shard.getSubaccount() == null ? config.getSubaccount() : shard.getSubaccount();
+    }
+
+    private static JsonObject withoutRecipients(JsonObject message, JsonArrayBuilder tos, Set<String> excluded) {
+        JsonObjectBuilder filtered = Json.createObjectBuilder();
+        message.forEach((name, value) -> {
+            if ("to".equals(name)) {
+                filtered.add(name, tos);
+            } else if ("merge_vars".equals(name)) {
+                JsonArrayBuilder mergeVars = Json.createArrayBuilder();
+                for (JsonValue rcpt : (JsonArray) value) {
+                    if (!excluded.contains(((JsonObject) rcpt).getString("rcpt", "").toLowerCase(Locale.ROOT))) mergeVars.add(rcpt);
+                }
+                filtered.add(name, mergeVars);
+            } else {
+                filtered.add(name, value);
+            }
+        });
+        return filtered.build();
     }
 
     public String render() throws MandrillException {
@@ -275,6 +513,58 @@ public class MandrillMessage {
     }
 
     public String render(JsonObject message) throws MandrillException {
+        return MandrillClient.join(renderAsync(message));
+    }
+
+    public CompletionStage<String> renderAsync() {
+        return renderAsync(toJson());
+    }
+
+    public CompletionStage<String> renderAsync(JsonObject message) {
+        MandrillRenderCache cache = getClient().getRenderCache();
+        if (cache == null || slug == null) {
+            return renderRemotely(message);
+        }
+        return cache.get(slug, message.getJsonArray("global_merge_vars"), () -> renderRemotely(message));
+    }
+
+    private CompletionStage<String> renderRemotely(JsonObject message) {
+        return getClient().requestAsync(HttpMethod.POST, "templates/render.json", slug, buildRenderBody(message)).thenApply(MandrillMessage::readHtml);
+    }
+
+    private JsonObject buildSendBody(JsonObject message, String apiKey) {
+        JsonObjectBuilder bodyBuilder = Json.createObjectBuilder()
+            .add("key", apiKey)
+            .add("message", message);
+        if (slug != null) {
+            bodyBuilder.add("template_name", slug);
+            bodyBuilder.add("template_content", Json.createArrayBuilder());
+        }
+        return bodyBuilder.build();
+    }
+
+    MandrillRequestBody sendBody(MandrillShard shard, Set<String> excluded) {
+        String apiKey = apiKey(shard);
+        String subaccount = subaccount(shard);
+        return MandrillRequestBody.streaming((generator, raw) -> {
+            writeBodyStart(generator, apiKey);
+            writeTo(generator, excluded, raw, subaccount);
+            generator.writeEnd();
+            generator.writeEnd();
+        });
+    }
+
+    private void writeBodyStart(JsonGenerator generator, String apiKey) {
+        generator.writeStartObject()
+            .write("key", apiKey);
+        if (slug != null) {
+            generator.write("template_name", slug);
+            generator.writeStartArray("template_content").writeEnd();
+        }
+        generator.writeStartObject("message");
+    }
+
+    private JsonObject buildRenderBody(JsonObject message) {
         JsonObjectBuilder bodyBuilder = Json.createObjectBuilder()
             .add("key", config.getApiKey())
             .add("merge_vars", message.getJsonArray("global_merge_vars"));
@@ -282,13 +572,20 @@ public class MandrillMessage {
             bodyBuilder.add("template_name", slug);
             bodyBuilder.add("template_content", Json.createArrayBuilder());
         }
-        JsonObject body = bodyBuilder.build();
-        Response response = getClient().request(HttpMethod.POST, "templates/render.json", body);
+        return bodyBuilder.build();
+    }
+
+    private String sendUri() {
+        return slug != null ? "messages/send-template.json" : "messages/send.json";
+    }
+
+    private static String sendUri(JsonObject body) {
+        return body.containsKey("template_name") ? "messages/send-template.json" : "messages/send.json";
+    }
+
+    private static String readHtml(MandrillResponse response) {
         try {
-            if (response.getStatus() != 200) {
-                throw new MandrillException(response, body);
-            }
-            return response.readEntity(JsonObject.class).getString("html");
+            return response.readJsonObject().getString("html");
         } finally {
             response.close();
         }
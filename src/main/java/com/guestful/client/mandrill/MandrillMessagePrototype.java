@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.HttpMethod;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Immutable message created by {@link MandrillMessage#freeze()}. The request body shared by all the instances
+ * (key, template, config, sender, subject, global merge vars, ...) is serialized once: sending an instance only
+ * serializes its recipients and their merge vars after it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class MandrillMessagePrototype {
+
+    private final MandrillClient client;
+    private final String slug;
+    private final String uri;
+    private final MandrillShard shard;
+    private final byte[] prefix;
+    private final JsonObject shared;
+
+    MandrillMessagePrototype(MandrillClient client, String slug, String uri, MandrillShard shard, MandrillRequestBody shared) {
+        this.client = client;
+        this.slug = slug;
+        this.uri = uri;
+        this.shard = shard;
+        byte[] bytes = shared.toBytes();
+        // drop the closing braces of the message and of the body: instance fields are appended after
+        if (bytes.length < 2 || bytes[bytes.length - 2] != '}' || bytes[bytes.length - 1] != '}') {
+            throw new IllegalStateException("Shared body must end with the message and body closing braces");
+        }
+        this.prefix = Arrays.copyOf(bytes, bytes.length - 2);
+        // the same shared body, written through a generator when a request is logged
+        this.shared = MandrillRequestBody.of(bytes).toJson();
+    }
+
+    public MandrillClient getClient() {
+        return client;
+    }
+
+    public String getSlug() {
+        return slug;
+    }
+
+    public Instance instance() {
+        return new Instance();
+    }
+
+    public final class Instance {
+
+        private final List<MandrillAddress> tos = new ArrayList<>(1);
+        private final MandrillVars vars = new MandrillVars();
+        private Map<String, MandrillVars> mergeVars;
+
+        private Instance() {
+        }
+
+        public MandrillMessagePrototype getPrototype() {
+            return MandrillMessagePrototype.this;
+        }
+
+        public Instance to(MandrillAddress addr) {
+            tos.add(addr);
+            return this;
+        }
+
+        public Instance to(String email) {
+            return to(new MandrillAddress(email));
+        }
+
+        public Instance to(String name, String email) {
+            return to(new MandrillAddress(name, email));
+        }
+
+        public Instance tos(Collection<MandrillAddress> addresses) {
+            tos.addAll(addresses);
+            return this;
+        }
+
+        /**
+         * @return the merge vars of all the recipients of this instance, overriding the global merge vars of the prototype
+         */
+        public MandrillVars getVars() {
+            return vars;
+        }
+
+        public Instance set(String name, String value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, boolean value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, int value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, long value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, double value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, BigInteger value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public Instance set(String name, BigDecimal value) {
+            vars.set(name, value);
+            return this;
+        }
+
+        public MandrillVars getMergeVars(String email) {
+            if (mergeVars == null) mergeVars = new HashMap<>();
+            MandrillVars vars = mergeVars.get(email);
+            if (vars == null) {
+                vars = new MandrillVars();
+                mergeVars.put(email, vars);
+            }
+            return vars;
+        }
+
+        public List<MandrillSendResult> send() throws MandrillException {
+            return MandrillClient.join(sendAsync());
+        }
+
+        /**
+         * @return the result of each recipient, including the ones left out by the client suppression list
+         */
+        public CompletionStage<List<MandrillSendResult>> sendAsync() {
+            MandrillSuppressionList suppressionList = client.getSuppressionList();
+            if (suppressionList == null) {
+                return sendAsync(tos);
+            }
+            List<MandrillSendResult> suppressed = suppressionList.suppressed(tos);
+            if (suppressed.isEmpty()) {
+                return suppressionList.complete(sendAsync(tos), suppressed);
+            }
+            if (suppressed.size() == tos.size()) {
+                return CompletableFuture.completedFuture(suppressed);
+            }
+            Set<String> excluded = MandrillSuppressionList.emails(suppressed);
+            List<MandrillAddress> recipients = new ArrayList<>(tos.size() - suppressed.size());
+            tos.forEach(to -> {
+                if (!excluded.contains(to.getEmail().toLowerCase(Locale.ROOT))) recipients.add(to);
+            });
+            return suppressionList.complete(sendAsync(recipients), suppressed);
+        }
+
+        // the body is written later on, and again on retries: from a copy of this instance as it is now
+        private CompletionStage<List<MandrillSendResult>> sendAsync(List<MandrillAddress> tos) {
+            List<MandrillAddress> recipients = new ArrayList<>(tos);
+            MandrillVars vars = this.vars.copy();
+            Map<String, MandrillVars> mergeVars = null;
+            if (this.mergeVars != null) {
+                mergeVars = new HashMap<>();
+                for (MandrillAddress to : recipients) {
+                    MandrillVars rcpt = this.mergeVars.get(to.getEmail());
+                    if (rcpt != null) mergeVars.put(to.getEmail(), rcpt.copy());
+                }
+            }
+            Map<String, MandrillVars> recipientVars = mergeVars;
+            return client.requestAsync(HttpMethod.POST, uri, slug, shard, new MandrillRequestBody() {
+                @Override
+                public void writeTo(JsonGenerator generator) {
+                    generator.writeStartObject();
+                    shared.forEach((name, value) -> {
+                        if (!"message".equals(name)) generator.write(name, value);
+                    });
+                    generator.writeStartObject("message");
+                    shared.getJsonObject("message").forEach(generator::write);
+                    writeInstanceTo(generator, recipients, vars, recipientVars);
+                    generator.writeEnd();
+                    generator.writeEnd();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(prefix);
+                    out.write(',');
+                    // the instance fields are written as an object whose opening brace is dropped: its closing one ends the message
+                    JsonGenerator generator = GENERATORS.createGenerator(new FilterOutputStream(out) {
+                        boolean first = true;
+
+                        @Override
+                        public void write(int b) throws IOException {
+                            if (first) first = false;
+                            else out.write(b);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            if (first && len > 0) {
+                                first = false;
+                                off++;
+                                len--;
+                            }
+                            out.write(b, off, len);
+                        }
+                    });
+                    generator.writeStartObject();
+                    writeInstanceTo(generator, recipients, vars, recipientVars);
+                    generator.writeEnd();
+                    generator.flush();
+                    out.write('}');
+                }
+            }).thenApply(MandrillSendResult::read);
+        }
+
+        // the instance fields of the message object
+        private void writeInstanceTo(JsonGenerator generator, List<MandrillAddress> recipients, MandrillVars vars, Map<String, MandrillVars> mergeVars) {
+            generator.writeStartArray("to");
+            recipients.forEach(to -> to.writeTo(generator));
+            generator.writeEnd();
+            generator.writeStartArray("merge_vars");
+            for (MandrillAddress to : recipients) {
+                MandrillVars rcpt = mergeVars == null ? null : mergeVars.get(to.getEmail());
+                if (rcpt == null && vars.isEmpty()) continue;
+                generator.writeStartObject().write("rcpt", to.getEmail());
+                generator.writeStartArray("vars");
+                if (rcpt != null) rcpt.forEach((name, content) -> writeVar(generator, name, content));
+                vars.forEach((name, content) -> {
+                    if (rcpt == null || !rcpt.contains(name)) writeVar(generator, name, content);
+                });
+                generator.writeEnd();
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+        }
+
+        private void writeVar(JsonGenerator generator, String name, String content) {
+            generator.writeStartObject()
+                .write("name", name)
+                .write("content", content)
+                .writeEnd();
+        }
+
+    }
+
+}
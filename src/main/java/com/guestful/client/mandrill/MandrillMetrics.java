@@ -0,0 +1,252 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default {@link MandrillMetricsListener} keeping counters and a latency histogram per API path and template.
+ * Recording does not allocate once the path and template have been seen: latencies go to log-linear buckets
+ * (16 sub-buckets per power of two of microseconds, i.e. about 6% precision) updated with atomic increments.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillMetrics implements MandrillMetricsListener {
+
+    private static final String NO_TEMPLATE = "";
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Stats>> stats = new ConcurrentHashMap<>();
+
+    @Override
+    public void onRequest(String path, String template, int status, long latencyNanos, long requestBytes) {
+        Stats stats = stats(path, template);
+        stats.requests.increment();
+        stats.bytes.add(requestBytes);
+        stats.statuses.incrementAndGet(Math.min(status / 100, 5));
+        stats.latency.record(TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    @Override
+    public void onRetry(String path, String template) {
+        stats(path, template).retries.increment();
+    }
+
+    @Override
+    public void onRejection(String path, String template) {
+        stats(path, template).rejections.increment();
+    }
+
+    @Override
+    public void onCompression(String path, String template, long bytes, long compressedBytes, long compressionNanos) {
+        Stats stats = stats(path, template);
+        stats.compressions.increment();
+        stats.uncompressedBytes.add(bytes);
+        stats.compressedBytes.add(compressedBytes);
+        stats.compressionNanos.add(compressionNanos);
+    }
+
+    public List<Snapshot> snapshot() {
+        List<Snapshot> snapshots = new ArrayList<>();
+        stats.forEach((path, templates) -> templates.forEach((template, stats) -> snapshots.add(new Snapshot(path, template.isEmpty() ? null : template, stats))));
+        return snapshots;
+    }
+
+    public void reset() {
+        stats.clear();
+    }
+
+    private Stats stats(String path, String template) {
+        if (template == null) template = NO_TEMPLATE;
+        ConcurrentMap<String, Stats> templates = this.stats.get(path);
+        if (templates == null) {
+            ConcurrentMap<String, Stats> created = new ConcurrentHashMap<>();
+            templates = this.stats.putIfAbsent(path, created);
+            if (templates == null) templates = created;
+        }
+        Stats stats = templates.get(template);
+        if (stats == null) {
+            Stats created = new Stats();
+            stats = templates.putIfAbsent(template, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    private static final class Stats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder retries = new LongAdder();
+        final LongAdder rejections = new LongAdder();
+        final LongAdder compressions = new LongAdder();
+        final LongAdder uncompressedBytes = new LongAdder();
+        final LongAdder compressedBytes = new LongAdder();
+        final LongAdder compressionNanos = new LongAdder();
+        // no response, 1xx, 2xx, 3xx, 4xx, 5xx
+        final AtomicLongArray statuses = new AtomicLongArray(6);
+        final Histogram latency = new Histogram();
+    }
+
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+
+        void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        // values below 16 have their own bucket, then each power of two is split in 16 buckets
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return exponent * SUB_BUCKETS + (int) (value >>> exponent);
+        }
+
+        // highest value falling in the bucket
+        static long value(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS - 1;
+            long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << exponent) - 1;
+        }
+
+        long[] snapshot() {
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+    }
+
+    public static final class Snapshot {
+        private final String path;
+        private final String template;
+        private final long requests;
+        private final long bytes;
+        private final long retries;
+        private final long rejections;
+        private final long compressions;
+        private final long uncompressedBytes;
+        private final long compressedBytes;
+        private final long compressionNanos;
+        private final long[] statuses = new long[6];
+        private final long[] latency;
+        private final long count;
+
+        Snapshot(String path, String template, Stats stats) {
+            this.path = path;
+            this.template = template;
+            this.requests = stats.requests.sum();
+            this.bytes = stats.bytes.sum();
+            this.retries = stats.retries.sum();
+            this.rejections = stats.rejections.sum();
+            this.compressions = stats.compressions.sum();
+            this.uncompressedBytes = stats.uncompressedBytes.sum();
+            this.compressedBytes = stats.compressedBytes.sum();
+            this.compressionNanos = stats.compressionNanos.sum();
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = stats.statuses.get(i);
+            }
+            this.latency = stats.latency.snapshot();
+            long count = 0;
+            for (long c : latency) count += c;
+            this.count = count;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public long getRequestCount() {
+            return requests;
+        }
+
+        public long getRequestBytes() {
+            return bytes;
+        }
+
+        public long getRetryCount() {
+            return retries;
+        }
+
+        public long getRejectionCount() {
+            return rejections;
+        }
+
+        public long getCompressedRequestCount() {
+            return compressions;
+        }
+
+        /**
+         * @return compressed size over original size of the compressed bodies, or 1 if none was compressed
+         */
+        public double getCompressionRatio() {
+            return uncompressedBytes == 0 ? 1 : (double) compressedBytes / uncompressedBytes;
+        }
+
+        public long getCompressionTime(TimeUnit unit) {
+            return unit.convert(compressionNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param statusClass 2 for 2xx, 5 for 5xx... or 0 for requests without response
+         */
+        public long getStatusCount(int statusClass) {
+            return statuses[statusClass];
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        public long getLatency(double percentile, TimeUnit unit) {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < latency.length; i++) {
+                seen += latency[i];
+                if (seen >= rank) return unit.convert(Histogram.value(i), TimeUnit.MICROSECONDS);
+            }
+            return unit.convert(Histogram.value(latency.length - 1), TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return path + (template == null ? "" : " [" + template + "]") +
+                " requests=" + requests +
+                " bytes=" + bytes +
+                " retries=" + retries +
+                " rejections=" + rejections +
+                (compressions == 0 ? "" : " compressed=" + compressions + " ratio=" + Math.round(getCompressionRatio() * 1000) / 1000.0 + " compression=" + getCompressionTime(TimeUnit.MILLISECONDS) + "ms") +
+                " 2xx=" + statuses[2] + " 4xx=" + statuses[4] + " 5xx=" + statuses[5] + " failed=" + statuses[0] +
+                " p50=" + getLatency(50, TimeUnit.MILLISECONDS) + "ms" +
+                " p99=" + getLatency(99, TimeUnit.MILLISECONDS) + "ms" +
+                " p99.9=" + getLatency(99.9, TimeUnit.MILLISECONDS) + "ms";
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+/**
+ * Notified by {@link MandrillClient} of each API call. Implementations are called from the threads
+ * completing the requests and must be thread safe and fast.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface MandrillMetricsListener {
+
+    /**
+     * @param path         API path, i.e. messages/send-template.json
+     * @param template     template slug, or null
+     * @param status       HTTP status, or 0 if no response was received
+     * @param latencyNanos time between sending the request and receiving the response
+     * @param requestBytes size of the request body, once compressed
+     */
+    void onRequest(String path, String template, int status, long latencyNanos, long requestBytes);
+
+    /**
+     * A failed attempt is going to be retried
+     */
+    void onRetry(String path, String template);
+
+    /**
+     * A request was refused: throttled by Mandrill or rejected locally without being sent
+     */
+    void onRejection(String path, String template);
+
+    /**
+     * A request body was gzip-compressed
+     *
+     * @param bytes            size of the body
+     * @param compressedBytes  size of the compressed body
+     * @param compressionNanos time spent compressing
+     */
+    default void onCompression(String path, String template, long bytes, long compressedBytes, long compressionNanos) {
+    }
+
+}
@@ -0,0 +1,323 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.ws.rs.HttpMethod;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the send requests: each request body is appended to a memory-mapped segment file
+ * before being transmitted and marked as done once Mandrill accepted it. Pending entries found when opening
+ * the outbox can be sent again with {@link #replay(MandrillClient)}.
+ * <p>
+ * Appends are group-committed: a flusher thread forces the dirty segments to disk every flush interval and
+ * completes all the appends made in between at once.
+ * <p>
+ * Record layout: length (int, written last), state (byte), timestamp (long), crc32 (int), path length (short), path, body.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillOutbox implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MandrillOutbox.class.getName());
+
+    private static final String PREFIX = "outbox-";
+    private static final String SUFFIX = ".log";
+    private static final byte PENDING = 1;
+    private static final byte DONE = 2;
+    private static final int HEADER = 4 + 1 + 8 + 4 + 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private final List<Entry> recovered = new ArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private Segment active;
+    private List<Waiter> waiters = new ArrayList<>();
+    private final Set<Segment> dirty = new HashSet<>();
+    private boolean closed;
+
+    public MandrillOutbox(Path directory) throws IOException {
+        this(directory, 64 * 1024 * 1024, 2, TimeUnit.MILLISECONDS);
+    }
+
+    public MandrillOutbox(Path directory, int segmentSize, long flushInterval, TimeUnit unit) throws IOException {
+        if (segmentSize < HEADER + 4) throw new IllegalArgumentException("segmentSize: " + segmentSize);
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        int last = recover();
+        this.active = open(last + 1, segmentSize);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "mandrill-outbox-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, unit);
+    }
+
+    /**
+     * @return the entries which were still pending when this outbox was opened, or spooled while the client circuit breaker was open
+     */
+    public synchronized List<Entry> getRecovered() {
+        return new ArrayList<>(recovered);
+    }
+
+    /**
+     * Sends again all the recovered entries through the given client.
+     */
+    public CompletionStage<Void> replay(MandrillClient client) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(recovered);
+            recovered.clear();
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[entries.size()];
+        for (int i = 0; i < futures.length; i++) {
+            Entry entry = entries.get(i);
+            MandrillRequest request = new MandrillRequest(HttpMethod.POST, entry.getPath(), null, MandrillRequestBody.of(entry.getBody()));
+            futures[i] = client.requestAsync(request, this, entry.getId())
+                .handle((response, error) -> {
+                    if (response != null) response.close();
+                    else LOGGER.log(Level.WARNING, "Unable to replay outbox entry " + entry.getId() + " to " + entry.getPath(), error);
+                    return null;
+                })
+                .toCompletableFuture();
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    /**
+     * Keeps a pending entry which could not be sent to be replayed later
+     */
+    synchronized void spool(long id, String path, byte[] body) {
+        recovered.add(new Entry(id, path, body, System.currentTimeMillis()));
+    }
+
+    /**
+     * Appends a request to the journal.
+     *
+     * @return a stage completed with the entry id once the entry is durable, or failed if the outbox is closed
+     */
+    public CompletionStage<Long> append(String path, byte[] body) {
+        byte[] p = path.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER - 4 + p.length + body.length;
+        CRC32 crc = new CRC32();
+        crc.update(p);
+        crc.update(body);
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Outbox closed"));
+                return future;
+            }
+            try {
+                if (active.buffer.remaining() < length + 4 + 4) {
+                    active.buffer.force();
+                    Segment sealed = active;
+                    dirty.remove(sealed);
+                    active = open(active.index + 1, Math.max(segmentSize, length + 4 + 4));
+                    sealed.sealed = true;
+                    if (sealed.pending == 0) delete(sealed);
+                }
+            } catch (IOException e) {
+                future.completeExceptionally(new UncheckedIOException(e));
+                return future;
+            }
+            MappedByteBuffer buffer = active.buffer;
+            int offset = buffer.position();
+            buffer.position(offset + 4);
+            buffer.put(PENDING).putLong(System.currentTimeMillis()).putInt((int) crc.getValue()).putShort((short) p.length).put(p).put(body);
+            buffer.putInt(offset, length);
+            active.pending++;
+            dirty.add(active);
+            waiters.add(new Waiter(id(active.index, offset), future));
+        }
+        return future;
+    }
+
+    public synchronized void markDone(long id) {
+        Segment segment = segments.get((int) (id >>> 32));
+        if (segment == null) return;
+        int offset = (int) id + 4;
+        if (segment.buffer.get(offset) == DONE) return;
+        segment.buffer.put(offset, DONE);
+        if (--segment.pending == 0 && segment.sealed) delete(segment);
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        flusher.shutdown();
+        flush();
+    }
+
+    private void flush() {
+        List<Waiter> ready;
+        List<Segment> toForce;
+        synchronized (this) {
+            if (waiters.isEmpty()) return;
+            ready = waiters;
+            waiters = new ArrayList<>();
+            toForce = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        try {
+            toForce.forEach(segment -> segment.buffer.force());
+            ready.forEach(waiter -> waiter.future.complete(waiter.id));
+        } catch (RuntimeException e) {
+            ready.forEach(waiter -> waiter.future.completeExceptionally(e));
+        }
+    }
+
+    private int recover() throws IOException {
+        List<Integer> indexes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                indexes.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(indexes);
+        for (int index : indexes) {
+            Segment segment = open(index, (int) Files.size(file(index)));
+            segment.sealed = true;
+            MappedByteBuffer buffer = segment.buffer;
+            while (buffer.remaining() >= HEADER) {
+                int offset = buffer.position();
+                int length = buffer.getInt();
+                if (length < HEADER - 4 || length > buffer.remaining()) break;
+                byte state = buffer.get();
+                long timestamp = buffer.getLong();
+                int crc = buffer.getInt();
+                byte[] p = new byte[buffer.getShort() & 0xFFFF];
+                if (p.length > length - (HEADER - 4)) break;
+                buffer.get(p);
+                byte[] body = new byte[length - (HEADER - 4) - p.length];
+                buffer.get(body);
+                CRC32 check = new CRC32();
+                check.update(p);
+                check.update(body);
+                if ((int) check.getValue() != crc) {
+                    LOGGER.warning("Corrupted outbox record in " + file(index) + " at offset " + offset + ": ignoring the end of the segment");
+                    break;
+                }
+                if (state == PENDING) {
+                    segment.pending++;
+                    recovered.add(new Entry(id(index, offset), new String(p, StandardCharsets.UTF_8), body, timestamp));
+                }
+            }
+            if (segment.pending == 0) delete(segment);
+        }
+        return indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1);
+    }
+
+    private Segment open(int index, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(index), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Segment segment = new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            segments.put(index, segment);
+            return segment;
+        }
+    }
+
+    private void delete(Segment segment) {
+        segments.remove(segment.index);
+        try {
+            Files.deleteIfExists(file(segment.index));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to delete outbox segment " + file(segment.index), e);
+        }
+    }
+
+    private Path file(int index) {
+        return directory.resolve(String.format("%s%010d%s", PREFIX, index, SUFFIX));
+    }
+
+    private static long id(int index, int offset) {
+        return ((long) index << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static final class Entry {
+        private final long id;
+        private final String path;
+        private final byte[] body;
+        private final long timestamp;
+
+        Entry(long id, String path, byte[] body, long timestamp) {
+            this.id = id;
+            this.path = path;
+            this.body = body;
+            this.timestamp = timestamp;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private static final class Segment {
+        final int index;
+        final MappedByteBuffer buffer;
+        int pending;
+        boolean sealed;
+
+        Segment(int index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Waiter {
+        final long id;
+        final CompletableFuture<Long> future;
+
+        Waiter(long id, CompletableFuture<Long> future) {
+            this.id = id;
+            this.future = future;
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket whose refill rate is halved when Mandrill throttles us and then grows back
+ * linearly towards the configured rate while requests succeed.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillRateLimiter {
+
+    private static final double MIN_RATE_RATIO = 0.05;
+    private static final double RECOVERY_RATIO = 0.02;
+    private static final long THROTTLE_COOLDOWN = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final double burst;
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastThrottle = lastRefill - THROTTLE_COOLDOWN;
+
+    public MandrillRateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond: " + permitsPerSecond);
+        if (burst < 1) throw new IllegalArgumentException("burst: " + burst);
+        this.maxRate = permitsPerSecond;
+        this.rate = permitsPerSecond;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes a permit, possibly in advance.
+     *
+     * @return the number of nanoseconds to wait before using it
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1_000_000_000d);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000d / rate);
+    }
+
+    public synchronized void onThrottled() {
+        long now = System.nanoTime();
+        // all requests in flight when the limit is hit come back throttled: only slow down once for them
+        if (now - lastThrottle < THROTTLE_COOLDOWN) return;
+        lastThrottle = now;
+        rate = Math.max(maxRate * MIN_RATE_RATIO, rate / 2);
+        tokens = Math.min(tokens, 0);
+    }
+
+    public synchronized void onSuccess() {
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + maxRate * RECOVERY_RATIO);
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public double getMaxRate() {
+        return maxRate;
+    }
+
+}
@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * LRU cache of rendered templates, keyed by template slug and merge variables (whatever their order),
+ * with entries expiring after a fixed time to live. Concurrent renders of the same content share one request.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillRenderCache {
+
+    private final int maxSize;
+    private final long ttl;
+    private final Map<Key, Cached> entries;
+    private final ConcurrentHashMap<Key, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public MandrillRenderCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize: " + maxSize);
+        this.maxSize = maxSize;
+        this.ttl = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() > MandrillRenderCache.this.maxSize) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public CompletionStage<String> get(String slug, JsonArray mergeVars, Supplier<CompletionStage<String>> loader) {
+        Key key = new Key(slug, mergeVars);
+        long now = System.nanoTime();
+        synchronized (entries) {
+            Cached cached = entries.get(key);
+            if (cached != null) {
+                if (now - cached.expiresAt < 0) {
+                    hits.increment();
+                    return CompletableFuture.completedFuture(cached.html);
+                }
+                entries.remove(key);
+                evictions.increment();
+            }
+        }
+        misses.increment();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> pending = loading.putIfAbsent(key, future);
+        if (pending != null) {
+            return pending;
+        }
+        try {
+            loader.get().whenComplete((html, error) -> {
+                if (error == null) {
+                    synchronized (entries) {
+                        entries.put(key, new Cached(html, System.nanoTime() + ttl));
+                    }
+                }
+                loading.remove(key, future);
+                if (error == null) future.complete(html);
+                else future.completeExceptionally(error);
+            });
+        } catch (RuntimeException e) {
+            loading.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public void invalidate(String slug) {
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> Objects.equals(key.slug, slug));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public double getHitRatio() {
+        long hits = getHitCount();
+        long total = hits + getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "MandrillRenderCache{size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    private static final class Cached {
+        final String html;
+        final long expiresAt;
+
+        Cached(String html, long expiresAt) {
+            this.html = html;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Key {
+        final String slug;
+        final String vars;
+        final int hash;
+
+        Key(String slug, JsonArray mergeVars) {
+            this.slug = slug;
+            this.vars = canonical(mergeVars);
+            this.hash = 31 * Objects.hashCode(slug) + vars.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && Objects.equals(slug, key.slug) && vars.equals(key.vars);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        // merge var names are case insensitive and their order does not matter: sort them by upper-cased name
+        private static String canonical(JsonArray mergeVars) {
+            if (mergeVars == null || mergeVars.isEmpty()) return "";
+            String[][] vars = new String[mergeVars.size()][];
+            for (int i = 0; i < vars.length; i++) {
+                JsonObject var = mergeVars.getJsonObject(i);
+                JsonValue content = var.get("content");
+                vars[i] = new String[]{
+                    var.getString("name").toUpperCase(Locale.ROOT),
+                    content instanceof JsonString ? ((JsonString) content).getString() : String.valueOf(content)};
+            }
+            Arrays.sort(vars, (a, b) -> a[0].compareTo(b[0]));
+            StringBuilder sb = new StringBuilder();
+            for (String[] var : vars) {
+                sb.append(var[0].length()).append(':').append(var[0]).append(var[1].length()).append(':').append(var[1]);
+            }
+            return sb.toString();
+        }
+    }
+
+}
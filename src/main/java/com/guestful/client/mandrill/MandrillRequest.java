@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+/**
+ * A Mandrill API call going through the client pipeline, possibly several times when retried.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class MandrillRequest {
+
+    final String method;
+    final String path;
+    final String template;
+    final MandrillRequestBody body;
+    MandrillShard shard;
+    int attempt = 1;
+    long bytes;
+
+    MandrillRequest(String method, String path, String template, MandrillRequestBody body) {
+        this.method = method;
+        this.path = path;
+        this.template = template;
+        this.body = body;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + path;
+    }
+
+}
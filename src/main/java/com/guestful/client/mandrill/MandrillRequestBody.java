@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonReaderFactory;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * JSON body of a Mandrill API call, written straight to the request entity stream.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@FunctionalInterface
+interface MandrillRequestBody {
+
+    // looking up the JSON provider is costly: do it once
+    JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(null);
+    JsonReaderFactory READERS = Json.createReaderFactory(null);
+    JsonParserFactory PARSERS = Json.createParserFactory(null);
+
+    void writeTo(JsonGenerator generator);
+
+    default void writeTo(OutputStream out) throws IOException {
+        // the generator is not closed since it would close the entity stream
+        JsonGenerator generator = GENERATORS.createGenerator(out);
+        writeTo(generator);
+        generator.flush();
+    }
+
+    default byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try {
+            writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    default JsonObject toJson() {
+        try (JsonReader reader = READERS.createReader(new ByteArrayInputStream(toBytes()))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * A body also writing raw JSON to the entity stream: it is given along with the generator writing to it, or is null
+     * when only a generator is available.
+     */
+    @FunctionalInterface
+    interface Streaming {
+        void writeTo(JsonGenerator generator, OutputStream raw) throws IOException;
+    }
+
+    static MandrillRequestBody streaming(Streaming streaming) {
+        return new MandrillRequestBody() {
+            @Override
+            public void writeTo(JsonGenerator generator) {
+                try {
+                    streaming.writeTo(generator, null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                JsonGenerator generator = GENERATORS.createGenerator(out);
+                streaming.writeTo(generator, out);
+                generator.flush();
+            }
+        };
+    }
+
+    static MandrillRequestBody of(JsonObject json) {
+        return new MandrillRequestBody() {
+            @Override
+            public void writeTo(JsonGenerator generator) {
+                generator.writeStartObject();
+                json.forEach(generator::write);
+                generator.writeEnd();
+            }
+
+            @Override
+            public JsonObject toJson() {
+                return json;
+            }
+        };
+    }
+
+    static MandrillRequestBody of(byte[] bytes) {
+        return new MandrillRequestBody() {
+            @Override
+            public void writeTo(JsonGenerator generator) {
+                copy(PARSERS.createParser(new ByteArrayInputStream(bytes)), generator);
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+
+            @Override
+            public byte[] toBytes() {
+                return bytes;
+            }
+        };
+    }
+
+    static void copy(JsonParser parser, JsonGenerator generator) {
+        String name = null;
+        while (parser.hasNext()) {
+            switch (parser.next()) {
+                case KEY_NAME:
+                    name = parser.getString();
+                    continue;
+                case START_OBJECT:
+                    if (name == null) generator.writeStartObject();
+                    else generator.writeStartObject(name);
+                    break;
+                case START_ARRAY:
+                    if (name == null) generator.writeStartArray();
+                    else generator.writeStartArray(name);
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    generator.writeEnd();
+                    break;
+                case VALUE_STRING:
+                    if (name == null) generator.write(parser.getString());
+                    else generator.write(name, parser.getString());
+                    break;
+                case VALUE_NUMBER:
+                    // any number of up to 18 characters fits in a long: longer integral ones may not
+                    if (parser.isIntegralNumber() && parser.getString().length() < 19) {
+                        if (name == null) generator.write(parser.getLong());
+                        else generator.write(name, parser.getLong());
+                    } else {
+                        if (name == null) generator.write(parser.getBigDecimal());
+                        else generator.write(name, parser.getBigDecimal());
+                    }
+                    break;
+                case VALUE_TRUE:
+                    if (name == null) generator.write(true);
+                    else generator.write(name, true);
+                    break;
+                case VALUE_FALSE:
+                    if (name == null) generator.write(false);
+                    else generator.write(name, false);
+                    break;
+                case VALUE_NULL:
+                    if (name == null) generator.writeNull();
+                    else generator.writeNull(name);
+                    break;
+            }
+            name = null;
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs the API requests at FINEST level on the {@link MandrillClient} logger.
+ * <p>
+ * Bodies are serialized only up to the maximum length, the API key is always redacted and recipient
+ * emails can be too. Setting a sample rate below 1 logs only a fraction of the requests.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillRequestLogger {
+
+    private static final Logger LOGGER = Logger.getLogger(MandrillClient.class.getName());
+    private static final String REDACTED = "***";
+
+    private int maxLength = 1000;
+    private boolean redactEmails;
+    private double sampleRate = 1;
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public MandrillRequestLogger setMaxLength(int maxLength) {
+        if (maxLength < 0) throw new IllegalArgumentException("maxLength must be positive");
+        this.maxLength = maxLength;
+        return this;
+    }
+
+    public boolean isRedactEmails() {
+        return redactEmails;
+    }
+
+    /**
+     * Only keep the domain of the recipient emails
+     */
+    public MandrillRequestLogger setRedactEmails(boolean redactEmails) {
+        this.redactEmails = redactEmails;
+        return this;
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate fraction of the requests to log, between 0 and 1
+     */
+    public MandrillRequestLogger setSampleRate(double sampleRate) {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) throw new IllegalArgumentException("sampleRate must be between 0 and 1");
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    public boolean isLoggable() {
+        return LOGGER.isLoggable(Level.FINEST) && (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    void log(MandrillRequest request) {
+        if (isLoggable()) {
+            LOGGER.finest(request + " : " + format(request.body));
+        }
+    }
+
+    String format(MandrillRequestBody body) {
+        BoundedWriter writer = new BoundedWriter(maxLength);
+        JsonGenerator generator = new RedactingGenerator(MandrillRequestBody.GENERATORS.createGenerator(writer), redactEmails);
+        try {
+            body.writeTo(generator);
+            generator.flush();
+        } catch (JsonException e) {
+            // also thrown on purpose when the maximum length is reached
+            if (!writer.full) return writer + "... (" + e.getMessage() + ")";
+        }
+        return writer.full ? writer + "..." : writer.toString();
+    }
+
+    static String redactEmail(String email) {
+        int at = email.lastIndexOf('@');
+        return at < 0 ? REDACTED : REDACTED + email.substring(at);
+    }
+
+    private static final class BoundedWriter extends Writer {
+        private final StringBuilder sb;
+        private final int max;
+        boolean full;
+
+        BoundedWriter(int max) {
+            this.sb = new StringBuilder(Math.min(max, 1024));
+            this.max = max;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int room = max - sb.length();
+            if (len > room) {
+                sb.append(cbuf, off, room);
+                full = true;
+                // stops the serialization
+                throw new IOException("log length reached");
+            }
+            sb.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    // replaces the API key, and optionally recipient emails, while they are written
+    private static final class RedactingGenerator implements JsonGenerator {
+        private final JsonGenerator delegate;
+        private final boolean redactEmails;
+
+        RedactingGenerator(JsonGenerator delegate, boolean redactEmails) {
+            this.delegate = delegate;
+            this.redactEmails = redactEmails;
+        }
+
+        private String redact(String name, String value) {
+            if ("key".equals(name)) return REDACTED;
+            if (redactEmails && value != null && ("email".equals(name) || "rcpt".equals(name) || "bcc_address".equals(name))) {
+                return redactEmail(value);
+            }
+            return value;
+        }
+
+        @Override
+        public JsonGenerator writeStartObject() {
+            delegate.writeStartObject();
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartObject(String name) {
+            delegate.writeStartObject(name);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartArray() {
+            delegate.writeStartArray();
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeStartArray(String name) {
+            delegate.writeStartArray(name);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, JsonValue value) {
+            switch (value.getValueType()) {
+                case OBJECT:
+                    writeStartObject(name);
+                    ((JsonObject) value).forEach(this::write);
+                    return writeEnd();
+                case ARRAY:
+                    writeStartArray(name);
+                    ((JsonArray) value).forEach(this::write);
+                    return writeEnd();
+                case STRING:
+                    return write(name, ((JsonString) value).getString());
+                default:
+                    delegate.write(name, value);
+                    return this;
+            }
+        }
+
+        @Override
+        public JsonGenerator write(String name, String value) {
+            delegate.write(name, redact(name, value));
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, BigInteger value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, BigDecimal value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, int value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, long value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, double value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(String name, boolean value) {
+            delegate.write(name, value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeNull(String name) {
+            delegate.writeNull(name);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeEnd() {
+            delegate.writeEnd();
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(JsonValue value) {
+            switch (value.getValueType()) {
+                case OBJECT:
+                    writeStartObject();
+                    ((JsonObject) value).forEach(this::write);
+                    return writeEnd();
+                case ARRAY:
+                    writeStartArray();
+                    ((JsonArray) value).forEach(this::write);
+                    return writeEnd();
+                default:
+                    delegate.write(value);
+                    return this;
+            }
+        }
+
+        @Override
+        public JsonGenerator write(String value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(BigDecimal value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(BigInteger value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(int value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(long value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(double value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator write(boolean value) {
+            delegate.write(value);
+            return this;
+        }
+
+        @Override
+        public JsonGenerator writeNull() {
+            delegate.writeNull();
+            return this;
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        @Override
+        public void flush() {
+            delegate.flush();
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response received by a {@link MandrillTransport}. Its entity can be read once and must be closed.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class MandrillResponse implements Closeable {
+
+    private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+    private final int status;
+    private final String reasonPhrase;
+    private final InputStream entity;
+    private final Closeable onClose;
+
+    /**
+     * @param entity  the response entity, or null if there is none
+     * @param onClose released when the response is closed, after the entity stream. May be null.
+     */
+    public MandrillResponse(int status, String reasonPhrase, InputStream entity, Closeable onClose) {
+        this.status = status;
+        this.reasonPhrase = reasonPhrase;
+        this.entity = entity == null ? EMPTY : entity;
+        this.onClose = onClose;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    public Response.StatusType getStatusInfo() {
+        Response.Status known = Response.Status.fromStatusCode(status);
+        if (known != null && (reasonPhrase == null || reasonPhrase.equals(known.getReasonPhrase()))) {
+            return known;
+        }
+        return new Response.StatusType() {
+            @Override
+            public int getStatusCode() {
+                return status;
+            }
+
+            @Override
+            public Response.Status.Family getFamily() {
+                return Response.Status.Family.familyOf(status);
+            }
+
+            @Override
+            public String getReasonPhrase() {
+                return reasonPhrase == null ? "" : reasonPhrase;
+            }
+
+            @Override
+            public String toString() {
+                return getReasonPhrase();
+            }
+        };
+    }
+
+    public boolean hasEntity() {
+        return entity != EMPTY;
+    }
+
+    public InputStream getEntity() {
+        return entity;
+    }
+
+    public String readString() {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+            byte[] buffer = new byte[4096];
+            for (int n; (n = entity.read(buffer)) != -1; ) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new ProcessingException(e.getMessage(), e);
+        }
+    }
+
+    public JsonObject readJsonObject() {
+        // the entity stream is released by close()
+        JsonReader reader = MandrillRequestBody.READERS.createReader(entity, StandardCharsets.UTF_8);
+        return reader.readObject();
+    }
+
+    public JsonArray readJsonArray() {
+        // the entity stream is released by close()
+        JsonReader reader = MandrillRequestBody.READERS.createReader(entity, StandardCharsets.UTF_8);
+        return reader.readArray();
+    }
+
+    @Override
+    public void close() {
+        try {
+            try {
+                // consume what was not read so that the connection can be kept alive
+                byte[] buffer = new byte[4096];
+                while (entity.read(buffer) != -1) ;
+                entity.close();
+            } finally {
+                if (onClose != null) onClose.close();
+            }
+        } catch (IOException e) {
+            throw new ProcessingException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + reasonPhrase;
+    }
+
+    static MandrillResponse ok() {
+        return new MandrillResponse(200, "OK", null, null);
+    }
+
+    static MandrillResponse spooled() {
+        return new MandrillResponse(202, "Accepted", null, null);
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.ws.rs.ProcessingException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with full jitter: the delay before attempt n+1 is drawn uniformly
+ * between 0 and min(maxDelay, baseDelay * 2^(n-1)).
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillRetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+
+    public MandrillRetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts: " + maxAttempts);
+        if (baseDelay < 0 || maxDelay < baseDelay) throw new IllegalArgumentException("delays: " + baseDelay + ", " + maxDelay);
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = unit.toNanos(baseDelay);
+        this.maxDelay = unit.toNanos(maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getBaseDelay(TimeUnit unit) {
+        return unit.convert(baseDelay, TimeUnit.NANOSECONDS);
+    }
+
+    public long getMaxDelay(TimeUnit unit) {
+        return unit.convert(maxDelay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param attempt the attempt which just failed, starting at 1
+     * @return the delay in nanoseconds before the next attempt
+     */
+    public long getDelay(int attempt) {
+        long cap = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, Long.numberOfLeadingZeros(baseDelay) - 1));
+        return cap <= 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public boolean shouldRetry(int attempt, Throwable error) {
+        return attempt < maxAttempts && isRetryable(error);
+    }
+
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof MandrillException) return ((MandrillException) error).isRetryable();
+        // timeouts, connection resets, ... reported by the JAX-RS client
+        return error instanceof ProcessingException;
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The outcome of a send for one recipient, as reported by Mandrill.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class MandrillSendResult {
+
+    public enum Status {
+        SENT, QUEUED, SCHEDULED, REJECTED, INVALID;
+
+        static Status of(String status) {
+            switch (status) {
+                case "sent":
+                    return SENT;
+                case "queued":
+                    return QUEUED;
+                case "scheduled":
+                    return SCHEDULED;
+                case "rejected":
+                    return REJECTED;
+                case "invalid":
+                    return INVALID;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final String email;
+    private final Status status;
+    private final String rejectReason;
+    private final String id;
+
+    public MandrillSendResult(String email, Status status, String rejectReason, String id) {
+        this.email = email;
+        this.status = status;
+        this.rejectReason = rejectReason;
+        this.id = id;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    /**
+     * @return the sending status, or null if Mandrill reported an unknown one
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the reason of a rejection (i.e. 'hard-bounce', 'spam', 'unsub'...), or null
+     */
+    public String getRejectReason() {
+        return rejectReason;
+    }
+
+    /**
+     * @return the Mandrill message id, to track the message
+     */
+    public String getId() {
+        return id;
+    }
+
+    public boolean isAccepted() {
+        return status == Status.SENT || status == Status.QUEUED || status == Status.SCHEDULED;
+    }
+
+    @Override
+    public String toString() {
+        return email + " " + (status == null ? "?" : status.name().toLowerCase(Locale.ROOT)) + (rejectReason == null ? "" : " (" + rejectReason + ")") + " " + id;
+    }
+
+    /**
+     * Reads the results while streaming the response entity, and closes the response
+     */
+    static List<MandrillSendResult> read(MandrillResponse response) {
+        try {
+            if (!response.hasEntity()) return Collections.emptyList();
+            // the entity stream is released by close()
+            JsonParser parser = MandrillRequestBody.PARSERS.createParser(response.getEntity(), StandardCharsets.UTF_8);
+            if (!parser.hasNext()) return Collections.emptyList();
+            if (parser.next() != JsonParser.Event.START_ARRAY) {
+                throw new JsonParsingException("Expected an array of results", parser.getLocation());
+            }
+            List<MandrillSendResult> results = new ArrayList<>();
+            for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_ARRAY; event = parser.next()) {
+                if (event == JsonParser.Event.START_OBJECT) {
+                    results.add(readResult(parser));
+                } else {
+                    skip(parser, event);
+                }
+            }
+            return results;
+        } finally {
+            response.close();
+        }
+    }
+
+    private static MandrillSendResult readResult(JsonParser parser) {
+        String email = null;
+        Status status = null;
+        String rejectReason = null;
+        String id = null;
+        for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_OBJECT; event = parser.next()) {
+            String key = parser.getString();
+            event = parser.next();
+            if (event != JsonParser.Event.VALUE_STRING) {
+                skip(parser, event);
+                continue;
+            }
+            switch (key) {
+                case "email":
+                    email = parser.getString();
+                    break;
+                case "status":
+                    status = Status.of(parser.getString());
+                    break;
+                case "reject_reason":
+                    rejectReason = parser.getString();
+                    break;
+                case "_id":
+                    id = parser.getString();
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new MandrillSendResult(email, status, rejectReason, id);
+    }
+
+    // skips the value started by the given event
+    static void skip(JsonParser parser, JsonParser.Event event) {
+        int depth = 0;
+        do {
+            if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) depth++;
+            else if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) depth--;
+            if (depth == 0) return;
+            event = parser.next();
+        } while (true);
+    }
+
+}
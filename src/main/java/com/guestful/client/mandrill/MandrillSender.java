@@ -0,0 +1,227 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the submitted messages from a bounded queue with a fixed number of workers.
+ * <p>
+ * The workers are created with the given thread factory: on a recent JDK, a virtual thread factory
+ * ({@code Thread.ofVirtual().factory()}) allows large concurrency limits cheaply.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillSender implements AutoCloseable {
+
+    /**
+     * What {@link #submit(MandrillMessage)} does when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for some room in the queue
+         */
+        BLOCK,
+        /**
+         * Fail the submitted message with a {@link RejectedExecutionException}
+         */
+        REJECT,
+        /**
+         * Fail the oldest queued message with a {@link RejectedExecutionException} to make room
+         */
+        DROP_OLDEST
+    }
+
+    private static final AtomicInteger SENDERS = new AtomicInteger();
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final BlockingQueue<Task> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final List<Thread> workers;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile boolean shutdown;
+
+    public MandrillSender(int capacity, int concurrency, OverflowPolicy overflowPolicy) {
+        this(capacity, concurrency, overflowPolicy, daemonThreads("mandrill-sender-" + SENDERS.incrementAndGet() + "-"));
+    }
+
+    public MandrillSender(int capacity, int concurrency, OverflowPolicy overflowPolicy, ThreadFactory threadFactory) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency: " + concurrency);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread worker = threadFactory.newThread(this::work);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * The message is queued as it is when this method is called: it can then be modified and submitted again.
+     */
+    public CompletionStage<List<MandrillSendResult>> submit(MandrillMessage message) {
+        Task task = new Task(message.snapshot());
+        if (shutdown) return reject(task, "Sender is shut down");
+        switch (overflowPolicy) {
+            case REJECT:
+                if (!queue.offer(task)) return reject(task, "Send queue is full");
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    Task oldest = queue.poll();
+                    if (oldest != null) reject(oldest, "Dropped from the full send queue");
+                }
+                break;
+            default:
+                try {
+                    while (!queue.offer(task, POLL_NANOS, TimeUnit.NANOSECONDS)) {
+                        if (shutdown) return reject(task, "Sender is shut down");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return reject(task, "Interrupted while waiting for room in the send queue");
+                }
+        }
+        // a shutdown completed meanwhile may not see this task
+        if (shutdown && queue.remove(task)) return reject(task, "Sender is shut down");
+        return task.future;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Stops accepting messages and waits for the queued and in-flight ones to be sent.
+     *
+     * @return true if all were sent in time. Otherwise, the messages still queued are rejected and the workers interrupted.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown = true;
+        // wakes up the idle workers, which then send what is left in the queue and stop
+        workers.forEach(Thread::interrupt);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+        }
+        boolean drained = true;
+        for (Task task; (task = queue.poll()) != null; ) {
+            reject(task, "Sender shut down before sending");
+            drained = false;
+        }
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                worker.interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // blocks until a message is queued or the sender is shut down
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                if (!shutdown) continue;
+                while ((task = queue.poll()) != null) send(task);
+                return;
+            }
+            send(task);
+        }
+    }
+
+    private void send(Task task) {
+        active.incrementAndGet();
+        try {
+            task.future.complete(task.message.send());
+            sent.increment();
+        } catch (RuntimeException | Error e) {
+            task.future.completeExceptionally(e);
+            failed.increment();
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+
+    private CompletionStage<List<MandrillSendResult>> reject(Task task, String reason) {
+        rejected.increment();
+        task.future.completeExceptionally(new RejectedExecutionException(reason));
+        return task.future;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static final class Task {
+        final MandrillMessage message;
+        final CompletableFuture<List<MandrillSendResult>> future = new CompletableFuture<>();
+
+        Task(MandrillMessage message) {
+            this.message = message;
+        }
+    }
+
+}
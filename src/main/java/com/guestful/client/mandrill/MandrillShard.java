@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+/**
+ * An API key, optionally restricted to a subaccount, with its own rate limit and health tracking.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillShard {
+
+    private final String name;
+    private final String apiKey;
+    private String subaccount;
+    private int weight = 1;
+    private MandrillRateLimiter rateLimiter;
+    private MandrillCircuitBreaker circuitBreaker;
+
+    public MandrillShard(String name, String apiKey) {
+        if (name == null) throw new IllegalArgumentException("name is required");
+        if (apiKey == null) throw new IllegalArgumentException("apiKey is required");
+        this.name = name;
+        this.apiKey = apiKey;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public String getSubaccount() {
+        return subaccount;
+    }
+
+    public MandrillShard setSubaccount(String subaccount) {
+        this.subaccount = subaccount;
+        return this;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Share of the messages routed by recipient hash, relative to the other shards. 0 to only receive the messages routed explicitly.
+     */
+    public MandrillShard setWeight(int weight) {
+        if (weight < 0) throw new IllegalArgumentException("weight: " + weight);
+        this.weight = weight;
+        return this;
+    }
+
+    public MandrillRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limits the requests made with this shard instead of the client rate limit
+     */
+    public MandrillShard setRateLimit(double permitsPerSecond, int burst) {
+        this.rateLimiter = new MandrillRateLimiter(permitsPerSecond, burst);
+        return this;
+    }
+
+    public MandrillCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Tracks the health of this shard instead of the client circuit breaker
+     */
+    public MandrillShard setCircuitBreaker(MandrillCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    public boolean isHealthy() {
+        return circuitBreaker == null || circuitBreaker.getState() != MandrillCircuitBreaker.State.OPEN;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
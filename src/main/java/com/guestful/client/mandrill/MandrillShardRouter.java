@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Chooses the {@link MandrillShard} sending a message: by tag first, then by sender domain, and otherwise by a
+ * consistent hash of the first recipient over the weighted shards. Recipients hashed to an unhealthy shard
+ * go to the next healthy one on the ring. Explicit routes do not fail over, so that a brand never eats into
+ * the capacity of another.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillShardRouter {
+
+    private static final int POINTS_PER_WEIGHT = 64;
+
+    private final Map<String, MandrillShard> shards = new LinkedHashMap<>();
+    // copied on write: routing does not lock
+    private volatile Map<String, MandrillShard> byTag = new HashMap<>();
+    private volatile Map<String, MandrillShard> bySenderDomain = new HashMap<>();
+    private volatile NavigableMap<Long, MandrillShard> ring = new TreeMap<>();
+
+    public synchronized MandrillShardRouter addShard(MandrillShard shard) {
+        if (shards.putIfAbsent(shard.getName(), shard) != null) throw new IllegalArgumentException("Duplicate shard: " + shard.getName());
+        NavigableMap<Long, MandrillShard> ring = new TreeMap<>(this.ring);
+        for (int i = 0, n = shard.getWeight() * POINTS_PER_WEIGHT; i < n; i++) {
+            ring.put(MandrillAddress.hash(shard.getName() + "#" + i), shard);
+        }
+        this.ring = ring;
+        return this;
+    }
+
+    public synchronized MandrillShardRouter routeTag(String tag, String shard) {
+        Map<String, MandrillShard> byTag = new HashMap<>(this.byTag);
+        byTag.put(tag, get(shard));
+        this.byTag = byTag;
+        return this;
+    }
+
+    /**
+     * @param domain domain of the sender address, i.e. 'guestful.com'
+     */
+    public synchronized MandrillShardRouter routeSenderDomain(String domain, String shard) {
+        Map<String, MandrillShard> bySenderDomain = new HashMap<>(this.bySenderDomain);
+        bySenderDomain.put(domain.toLowerCase(Locale.ROOT), get(shard));
+        this.bySenderDomain = bySenderDomain;
+        return this;
+    }
+
+    public synchronized Collection<MandrillShard> getShards() {
+        return new ArrayList<>(shards.values());
+    }
+
+    /**
+     * @return the shard to use, or null if there is none
+     */
+    public MandrillShard route(Collection<String> tags, String senderEmail, String recipientEmail) {
+        Map<String, MandrillShard> byTag = this.byTag;
+        if (!byTag.isEmpty()) {
+            for (String tag : tags) {
+                MandrillShard shard = byTag.get(tag);
+                if (shard != null) return shard;
+            }
+        }
+        Map<String, MandrillShard> bySenderDomain = this.bySenderDomain;
+        if (!bySenderDomain.isEmpty() && senderEmail != null) {
+            MandrillShard shard = bySenderDomain.get(senderEmail.substring(senderEmail.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT));
+            if (shard != null) return shard;
+        }
+        NavigableMap<Long, MandrillShard> ring = this.ring;
+        if (ring.isEmpty()) return null;
+        long hash = recipientEmail == null ? 0 : MandrillAddress.hash(recipientEmail);
+        MandrillShard first = null;
+        for (MandrillShard shard : ring.tailMap(hash, true).values()) {
+            if (first == null) first = shard;
+            if (shard.isHealthy()) return shard;
+        }
+        for (MandrillShard shard : ring.headMap(hash, false).values()) {
+            if (first == null) first = shard;
+            if (shard.isHealthy()) return shard;
+        }
+        // all unhealthy: their circuit breakers will refuse or spool
+        return first;
+    }
+
+    private MandrillShard get(String name) {
+        MandrillShard shard = shards.get(name);
+        if (shard == null) throw new IllegalArgumentException("Unknown shard: " + name);
+        return shard;
+    }
+
+}
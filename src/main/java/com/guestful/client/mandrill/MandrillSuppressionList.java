@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonParser;
+import javax.ws.rs.HttpMethod;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Addresses Mandrill will reject anyway (hard bounces, spam complaints, unsubscribes): once set on the
+ * {@link MandrillClient}, they are removed from the recipients before sending and reported as rejected
+ * with the {@link #REJECT_REASON} reason.
+ * <p>
+ * Lookups go through a Bloom filter first, so that most recipients are checked without allocating. Its
+ * hits are confirmed with an exact set.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillSuppressionList {
+
+    public static final String REJECT_REASON = "suppressed";
+
+    // reasons of the rejections which will happen again
+    private static final Set<String> PERMANENT_REASONS = new HashSet<>(Arrays.asList("hard-bounce", "spam", "unsub"));
+
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashes;
+    private final Set<String> emails = ConcurrentHashMap.newKeySet();
+
+    public MandrillSuppressionList() {
+        this(100_000, 0.01);
+    }
+
+    /**
+     * @param expectedSize              number of addresses the Bloom filter is sized for
+     * @param falsePositiveProbability  Bloom filter false positive probability at the expected size
+     */
+    public MandrillSuppressionList(int expectedSize, double falsePositiveProbability) {
+        if (expectedSize < 1) throw new IllegalArgumentException("expectedSize: " + expectedSize);
+        if (!(falsePositiveProbability > 0 && falsePositiveProbability < 1)) throw new IllegalArgumentException("falsePositiveProbability: " + falsePositiveProbability);
+        long m = (long) Math.ceil(-expectedSize * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, m));
+        this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedSize * Math.log(2)));
+        this.bits = new AtomicLongArray((bitCount + 63) >>> 6);
+    }
+
+    public void add(String email) {
+        if (emails.add(email.toLowerCase(Locale.ROOT))) {
+            long hash = MandrillAddress.hash(email);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+                int index = bit >>> 6;
+                long mask = 1L << bit;
+                long word;
+                while (((word = bits.get(index)) & mask) == 0 && !bits.compareAndSet(index, word, word | mask)) ;
+            }
+        }
+    }
+
+    /**
+     * The address will not be suppressed anymore (it stays in the Bloom filter, but is not confirmed by the exact set)
+     */
+    public void remove(String email) {
+        emails.remove(email.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean contains(String email) {
+        long hash = MandrillAddress.hash(email);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) return false;
+        }
+        return emails.contains(email.toLowerCase(Locale.ROOT));
+    }
+
+    public int size() {
+        return emails.size();
+    }
+
+    /**
+     * Adds the recipients of the given results which were rejected for good
+     */
+    public void update(Collection<MandrillSendResult> results) {
+        for (MandrillSendResult result : results) {
+            if (result.getEmail() == null) continue;
+            if (result.getStatus() == MandrillSendResult.Status.INVALID
+                || result.getStatus() == MandrillSendResult.Status.REJECTED && PERMANENT_REASONS.contains(result.getRejectReason())) {
+                add(result.getEmail());
+            }
+        }
+    }
+
+    /**
+     * Adds the addresses of the Mandrill rejection blacklist
+     *
+     * @return the number of addresses read
+     */
+    public CompletionStage<Integer> load(MandrillClient client) {
+        JsonObject body = Json.createObjectBuilder()
+            .add("key", client.getConfig().getApiKey())
+            .add("include_expired", false)
+            .build();
+        return client.requestAsync(HttpMethod.POST, "rejects/list.json", null, body).thenApply(response -> {
+            try {
+                if (!response.hasEntity()) return 0;
+                // the entity stream is released by close()
+                JsonParser parser = MandrillRequestBody.PARSERS.createParser(response.getEntity(), StandardCharsets.UTF_8);
+                int depth = 0;
+                int count = 0;
+                while (parser.hasNext()) {
+                    JsonParser.Event event = parser.next();
+                    if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) depth++;
+                    else if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) depth--;
+                    else if (event == JsonParser.Event.KEY_NAME && depth == 2 && "email".equals(parser.getString())
+                        && parser.next() == JsonParser.Event.VALUE_STRING) {
+                        add(parser.getString());
+                        count++;
+                    }
+                }
+                return count;
+            } finally {
+                response.close();
+            }
+        });
+    }
+
+    /**
+     * @return the rejected results of the suppressed recipients, empty if none
+     */
+    List<MandrillSendResult> suppressed(Collection<MandrillAddress> tos) {
+        List<MandrillSendResult> suppressed = Collections.emptyList();
+        for (MandrillAddress to : tos) {
+            if (to.getEmail() != null && contains(to.getEmail())) {
+                if (suppressed.isEmpty()) suppressed = new ArrayList<>(2);
+                suppressed.add(rejected(to.getEmail()));
+            }
+        }
+        return suppressed;
+    }
+
+    /**
+     * Learns from the results of a send, and adds the results of the recipients which were suppressed from it
+     */
+    CompletionStage<List<MandrillSendResult>> complete(CompletionStage<List<MandrillSendResult>> sent, List<MandrillSendResult> suppressed) {
+        return sent.thenApply(results -> {
+            update(results);
+            if (suppressed.isEmpty()) return results;
+            List<MandrillSendResult> all = new ArrayList<>(results.size() + suppressed.size());
+            all.addAll(results);
+            all.addAll(suppressed);
+            return all;
+        });
+    }
+
+    static Set<String> emails(List<MandrillSendResult> results) {
+        Set<String> emails = new HashSet<>();
+        results.forEach(result -> emails.add(result.getEmail().toLowerCase(Locale.ROOT)));
+        return emails;
+    }
+
+    static MandrillSendResult rejected(String email) {
+        return new MandrillSendResult(email, MandrillSendResult.Status.REJECTED, REJECT_REASON, null);
+    }
+
+}
@@ -15,6 +15,10 @@
  */
 package com.guestful.client.mandrill;
 
+import javax.json.Json;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
@@ -40,6 +44,20 @@ public class MandrillTemplate {
         return new MandrillMessage(getClient()).slug(slugName);
     }
 
+    /**
+     * Renders the template with the given merge variables, locally if the template source only uses
+     * supported merge tags, otherwise through templates/render.json
+     */
+    public String render(MandrillVars vars) throws MandrillException {
+        return MandrillClient.join(renderAsync(vars));
+    }
+
+    public CompletionStage<String> renderAsync(MandrillVars vars) {
+        return getClient().getCompiledTemplate(slugName).thenCompose(template -> template != null ?
+            CompletableFuture.completedFuture(template.render(vars::get)) :
+            createMandrillMessage().renderAsync(Json.createObjectBuilder().add("global_merge_vars", vars.toJson()).build()));
+    }
+
     @Override
     public String toString() {
         return slugName;
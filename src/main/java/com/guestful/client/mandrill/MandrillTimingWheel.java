@@ -0,0 +1,400 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical timing wheel holding the messages sent with {@link MandrillMessage#sendAt(Instant)}.
+ * <p>
+ * Each of the 6 levels has 64 slots, each slot of a level spanning a whole turn of the level below, so that
+ * scheduling and cancelling are O(1) and a single thread advances the wheel tick by tick. The messages due at
+ * the same tick are sent together through a {@link MandrillCoalescingSender}, which merges the ones sharing the
+ * same template and settings into single requests.
+ * <p>
+ * With a journal, the scheduled messages are appended to a file as JSON lines, which is flushed every tick and
+ * compacted when the wheel is opened again: the messages still pending are then scheduled again.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillTimingWheel implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MandrillTimingWheel.class.getName());
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+    private static final long SPAN = 1L << (BITS * LEVELS);
+    private static final int BATCH_RECIPIENTS = 1000;
+
+    private final MandrillClient client;
+    private final long tickMillis;
+    private final Timeout[] slots = new Timeout[LEVELS * SLOTS];
+    private final MandrillCoalescingSender coalescer;
+    private final Thread thread;
+    private final Path journal;
+    private BufferedWriter journalWriter;
+    private FileChannel journalChannel;
+    private boolean dirty;
+    private long current;
+    private long nextId;
+    private int size;
+    private volatile boolean closed;
+
+    public MandrillTimingWheel(MandrillClient client, long tick, TimeUnit unit) {
+        this(client, tick, unit, null);
+    }
+
+    /**
+     * @param journal file keeping the scheduled messages across restarts, or null
+     */
+    public MandrillTimingWheel(MandrillClient client, long tick, TimeUnit unit, Path journal) {
+        this.tickMillis = unit.toMillis(tick);
+        if (tickMillis < 1) throw new IllegalArgumentException("tick: " + tick + " " + unit);
+        this.client = client;
+        this.journal = journal;
+        this.current = System.currentTimeMillis() / tickMillis;
+        // flushed once all the due messages are submitted
+        this.coalescer = new MandrillCoalescingSender(1, TimeUnit.MINUTES, BATCH_RECIPIENTS);
+        if (journal != null) {
+            try {
+                recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.thread = new Thread(this::run, "mandrill-timing-wheel");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * The message is serialized when it is due, or right away with a journal. Cancelling the returned future
+     * before then removes the message from the wheel.
+     */
+    public CompletableFuture<List<MandrillSendResult>> schedule(MandrillMessage message, Instant at) {
+        Timeout timeout = new Timeout(this, message, journal == null ? null : message.toJson(), ceilDiv(at.toEpochMilli(), tickMillis));
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Timing wheel closed");
+            timeout.id = nextId++;
+            if (timeout.json != null) journal(timeout);
+            insert(timeout);
+            size++;
+        }
+        return timeout;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+        List<Timeout> pending = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (int i = 0; i < slots.length; i++) {
+                for (Timeout timeout = detach(i); timeout != null; timeout = timeout.next) pending.add(timeout);
+            }
+            size = 0;
+            closeJournal();
+        }
+        thread.interrupt();
+        coalescer.close();
+        // still in the journal, if any: they are not cancelled
+        IllegalStateException closed = new IllegalStateException("Timing wheel closed");
+        pending.forEach(timeout -> timeout.completeExceptionally(closed));
+    }
+
+    // only stops on close: a failure is reported to the futures of the messages involved
+    private void run() {
+        while (!closed) {
+            try {
+                advance();
+            } catch (RuntimeException | Error e) {
+                LOGGER.log(Level.SEVERE, "Unable to advance the timing wheel", e);
+            }
+        }
+    }
+
+    private void advance() {
+        long now = System.currentTimeMillis();
+        long wait = (current + 1) * tickMillis - now;
+        if (wait > 0) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+            return;
+        }
+        List<Timeout> due = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            long target = now / tickMillis;
+            if (size == 0) current = target;
+            while (current < target) tick(due);
+            size -= due.size();
+            flushJournal();
+        }
+        if (!due.isEmpty()) dispatch(due);
+    }
+
+    // cascades the slots of the upper levels whose turn starts, then collects the messages of the level 0 slot
+    private void tick(List<Timeout> due) {
+        current++;
+        for (int level = 1; level < LEVELS && (current & ((1L << (BITS * level)) - 1)) == 0; level++) {
+            Timeout timeout = detach(level * SLOTS + (int) (current >>> (BITS * level) & MASK));
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                // due on the block boundary: fires now instead of being pushed to the next tick
+                if (timeout.deadline <= current) due.add(timeout);
+                else insert(timeout);
+                timeout = next;
+            }
+        }
+        Timeout timeout = detach((int) (current & MASK));
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            // beyond the span of the wheel
+            if (timeout.deadline > current) insert(timeout);
+            else due.add(timeout);
+            timeout = next;
+        }
+    }
+
+    private void dispatch(List<Timeout> due) {
+        try {
+            submit(due);
+        } finally {
+            try {
+                coalescer.flush();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Unable to flush the due messages", e);
+            }
+        }
+    }
+
+    private void submit(List<Timeout> due) {
+        for (Timeout timeout : due) {
+            CompletableFuture<List<MandrillSendResult>> sent;
+            try {
+                sent = (timeout.json == null ? coalescer.submit(timeout.message) : coalescer.submit(timeout.message, timeout.json)).toCompletableFuture();
+            } catch (RuntimeException e) {
+                sent = new CompletableFuture<>();
+                sent.completeExceptionally(e);
+            }
+            sent.whenComplete((results, error) -> {
+                if (timeout.json != null) done(timeout);
+                if (error != null) timeout.completeExceptionally(error);
+                else timeout.complete(results);
+            });
+        }
+    }
+
+    // a timeout already due, when scheduled or recovered, fires at the next tick
+    private void insert(Timeout timeout) {
+        long deadline = Math.max(timeout.deadline, current + 1);
+        long delta = Math.min(deadline - current, SPAN - 1);
+        if (delta == SPAN - 1) deadline = current + delta;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) level++;
+        int slot = level * SLOTS + (int) (deadline >>> (BITS * level) & MASK);
+        Timeout head = slots[slot];
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) head.prev = timeout;
+        slots[slot] = timeout;
+    }
+
+    // the detached timeouts keep their links to be iterated
+    private Timeout detach(int slot) {
+        Timeout head = slots[slot];
+        slots[slot] = null;
+        for (Timeout timeout = head; timeout != null; timeout = timeout.next) timeout.slot = -1;
+        return head;
+    }
+
+    private synchronized void cancel(Timeout timeout) {
+        if (timeout.slot < 0) return;
+        if (timeout.prev != null) timeout.prev.next = timeout.next;
+        else slots[timeout.slot] = timeout.next;
+        if (timeout.next != null) timeout.next.prev = timeout.prev;
+        timeout.slot = -1;
+        timeout.prev = timeout.next = null;
+        size--;
+        if (timeout.json != null) done(timeout);
+    }
+
+    private synchronized void done(Timeout timeout) {
+        if (journalWriter == null) return;
+        try {
+            journalWriter.write("{\"id\":" + timeout.id + "}\n");
+            dirty = true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to write to the journal " + journal, e);
+        }
+    }
+
+    private void journal(Timeout timeout) {
+        try {
+            JsonGenerator generator = MandrillRequestBody.GENERATORS.createGenerator(new Unclosed(journalWriter))
+                .writeStartObject()
+                .write("id", timeout.id)
+                .write("at", timeout.deadline * tickMillis);
+            if (timeout.message.getSlug() != null) generator.write("template", timeout.message.getSlug());
+            generator.write("message", timeout.json).writeEnd().close();
+            journalWriter.write('\n');
+            dirty = true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void flushJournal() {
+        if (!dirty) return;
+        dirty = false;
+        try {
+            journalWriter.flush();
+            journalChannel.force(false);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to flush the journal " + journal, e);
+        }
+    }
+
+    private void closeJournal() {
+        if (journalWriter == null) return;
+        flushJournal();
+        try {
+            journalWriter.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close the journal " + journal, e);
+        }
+        journalWriter = null;
+    }
+
+    // keeps the pending records only, then schedules them again
+    private void recover() throws IOException {
+        Map<Long, String> pending = new LinkedHashMap<>();
+        if (Files.exists(journal)) {
+            try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                for (String line; (line = reader.readLine()) != null; ) {
+                    if (line.isEmpty()) continue;
+                    JsonObject record;
+                    try (JsonReader json = MandrillRequestBody.READERS.createReader(new StringReader(line))) {
+                        record = json.readObject();
+                    } catch (RuntimeException e) {
+                        LOGGER.warning("Corrupted record in journal " + journal + ": ignoring the end of the file");
+                        break;
+                    }
+                    long id = record.getJsonNumber("id").longValue();
+                    if (record.containsKey("message")) pending.put(id, line);
+                    else pending.remove(id);
+                }
+            }
+        }
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".tmp");
+        Files.write(compacted, pending.values(), StandardCharsets.UTF_8);
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journalChannel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalWriter = new BufferedWriter(Channels.newWriter(journalChannel, StandardCharsets.UTF_8.newEncoder(), -1));
+        for (String line : pending.values()) {
+            JsonObject record;
+            try (JsonReader json = MandrillRequestBody.READERS.createReader(new StringReader(line))) {
+                record = json.readObject();
+            }
+            MandrillMessage message = client.createMandrillMessage().slug(record.getString("template", null));
+            Timeout timeout = new Timeout(this, message, record.getJsonObject("message"), ceilDiv(record.getJsonNumber("at").longValue(), tickMillis));
+            timeout.id = record.getJsonNumber("id").longValue();
+            nextId = Math.max(nextId, timeout.id + 1);
+            insert(timeout);
+            size++;
+        }
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    private static final class Timeout extends CompletableFuture<List<MandrillSendResult>> {
+        final MandrillTimingWheel wheel;
+        final MandrillMessage message;
+        final JsonObject json;
+        final long deadline;
+        long id;
+        int slot = -1;
+        Timeout prev;
+        Timeout next;
+
+        Timeout(MandrillTimingWheel wheel, MandrillMessage message, JsonObject json, long deadline) {
+            this.wheel = wheel;
+            this.message = message;
+            this.json = json;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) wheel.cancel(this);
+            return cancelled;
+        }
+    }
+
+    // the generator closes its writer
+    private static final class Unclosed extends Writer {
+        private final Writer writer;
+
+        Unclosed(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(char[] buffer, int off, int len) throws IOException {
+            writer.write(buffer, off, len);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Carries the Mandrill API calls over HTTP.
+ * <p>
+ * See {@link MandrillJaxRsTransport} for a JAX-RS based implementation and {@link MandrillHttpTransport}
+ * for one that only needs the JDK.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface MandrillTransport extends AutoCloseable {
+
+    String DEFAULT_BASE_URI = "https://mandrillapp.com/api/1.0";
+
+    /**
+     * Sends a JSON request to the given API path, relative to the API base URI (i.e. 'messages/send.json').
+     * <p>
+     * The returned stage completes with the response whatever its status, or exceptionally with a
+     * {@link javax.ws.rs.ProcessingException} if no response could be received.
+     */
+    CompletionStage<MandrillResponse> send(String method, String path, Entity entity);
+
+    @Override
+    default void close() {
+    }
+
+    @FunctionalInterface
+    interface Entity {
+        /**
+         * Writes the request body. May be called again if the transport needs to resend the request.
+         */
+        void writeTo(OutputStream out) throws IOException;
+
+        /**
+         * Value of the Content-Encoding header, i.e. 'gzip', or null if the body is not encoded. Asked before writing.
+         */
+        default String getContentEncoding() {
+            return null;
+        }
+    }
+
+}
@@ -17,77 +17,168 @@ package com.guestful.client.mandrill;
 
 import javax.json.Json;
 import javax.json.JsonArrayBuilder;
+import javax.json.stream.JsonGenerator;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
 
 /**
+ * Merge variables, stored as parallel name / value arrays and only turned into JSON when serialized.
+ * Names are case insensitive like in Mandrill and setting a variable again replaces its previous value.
+ *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class MandrillVars {
 
-    private final JsonArrayBuilder vars = Json.createArrayBuilder();
+    private String[] names;
+    private Object[] values;
+    private int size;
+
+    public MandrillVars() {
+        this(8);
+    }
+
+    public MandrillVars(int capacity) {
+        names = new String[capacity];
+        values = new Object[capacity];
+    }
+
+    MandrillVars copy() {
+        MandrillVars copy = new MandrillVars(Math.max(size, 1));
+        System.arraycopy(names, 0, copy.names, 0, size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
 
     public JsonArrayBuilder toJson() {
+        JsonArrayBuilder vars = Json.createArrayBuilder();
+        for (int i = 0; i < size; i++) {
+            vars.add(Json.createObjectBuilder()
+                .add("name", names[i])
+                .add("content", String.valueOf(values[i])));
+        }
         return vars;
     }
 
+    void writeTo(JsonGenerator generator, String name) {
+        generator.writeStartArray(name);
+        for (int i = 0; i < size; i++) {
+            generator.writeStartObject()
+                .write("name", names[i])
+                .write("content", String.valueOf(values[i]))
+                .writeEnd();
+        }
+        generator.writeEnd();
+    }
+
     public MandrillVars set(String name, String value) {
-        if (value == null) return this;
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", value));
-        return this;
+        return put(name, value);
     }
 
     public MandrillVars set(String name, BigInteger value) {
-        if (value == null) return this;
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", String.valueOf(value)));
-        return this;
+        return put(name, value);
     }
 
     public MandrillVars set(String name, BigDecimal value) {
-        if (value == null) return this;
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", String.valueOf(value)));
-        return this;
+        return put(name, value);
     }
 
     public MandrillVars set(String name, int value) {
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", String.valueOf(value)));
-        return this;
+        return put(name, value);
     }
 
     public MandrillVars set(String name, long value) {
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", String.valueOf(value)));
-        return this;
+        return put(name, value);
     }
 
     public MandrillVars set(String name, double value) {
-        vars.add(Json.createObjectBuilder()
-            .add("name", name)
-            .add("content", String.valueOf(value)));
-        return this;
+        return put(name, value);
     }
 
+    /**
+     * A false variable is not sent at all so that *|IF:NAME|* conditions evaluate to false
+     */
     public MandrillVars set(String name, boolean value) {
-        if (value) {
-            vars.add(Json.createObjectBuilder()
-                .add("name", name)
-                .add("content", String.valueOf(true)));
+        return put(name, value ? Boolean.TRUE : null);
+    }
+
+    /**
+     * @return the content of the variable as sent to Mandrill, or null if not set
+     */
+    public String get(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : String.valueOf(values[i]);
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    public MandrillVars remove(String name) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            size--;
+            System.arraycopy(names, i + 1, names, i, size - i);
+            System.arraycopy(values, i + 1, values, i, size - i);
+            names[size] = null;
+            values[size] = null;
         }
         return this;
     }
 
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the variables but keeps the allocated storage so that this instance can be reused
+     */
+    public MandrillVars clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        return this;
+    }
+
+    public void forEach(BiConsumer<String, String> consumer) {
+        for (int i = 0; i < size; i++) {
+            consumer.accept(names[i], String.valueOf(values[i]));
+        }
+    }
+
     @Override
     public String toString() {
-        return vars.toString();
+        return toJson().build().toString();
+    }
+
+    private MandrillVars put(String name, Object value) {
+        if (value == null) return remove(name);
+        int i = indexOf(name);
+        if (i >= 0) {
+            values[i] = value;
+            return this;
+        }
+        if (size == names.length) {
+            int capacity = Math.max(8, size * 2);
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        names[size] = name;
+        values[size++] = value;
+        return this;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < size; i++) {
+            if (names[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
     }
 
 }
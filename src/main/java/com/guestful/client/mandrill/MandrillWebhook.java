@@ -0,0 +1,435 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives the events Mandrill posts to a webhook and dispatches them to the handlers registered by event type and tag.
+ * <p>
+ * The form-encoded 'mandrill_events' payload is url-decoded and parsed while it is read, the signature being computed
+ * along. The events are then queued to a fixed number of workers: all the events of a message go to the same worker,
+ * so they are handled in order. When the queues are full, {@link #receive(InputStream, String)} blocks, which slows
+ * down Mandrill instead of losing events.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillWebhook implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MandrillWebhook.class.getName());
+
+    private static final AtomicInteger WEBHOOKS = new AtomicInteger();
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final String EVENTS = "mandrill_events";
+    private static final String ANY_TAG = "";
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(MandrillEvent event);
+    }
+
+    private final SecretKeySpec key;
+    private final String url;
+    private final List<BlockingQueue<MandrillEvent>> queues;
+    private final List<Thread> workers;
+    private final Object routesLock = new Object();
+    private volatile Map<MandrillEvent.Type, Map<String, Handler[]>> routes = new EnumMap<>(MandrillEvent.Type.class);
+    private final LongAdder received = new LongAdder();
+    private final LongAdder handled = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean shutdown;
+
+    /**
+     * @param key the webhook authentication key, or null to not verify the signatures
+     * @param url the webhook URL, exactly as configured in Mandrill
+     */
+    public MandrillWebhook(String key, String url) {
+        this(key, url, 8192, Runtime.getRuntime().availableProcessors(), daemonThreads("mandrill-webhook-" + WEBHOOKS.incrementAndGet() + "-"));
+    }
+
+    /**
+     * @param capacity    number of events queued for each worker
+     * @param concurrency number of workers
+     */
+    public MandrillWebhook(String key, String url, int capacity, int concurrency, ThreadFactory threadFactory) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency: " + concurrency);
+        this.key = key == null ? null : new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA1");
+        this.url = url;
+        this.queues = new ArrayList<>(concurrency);
+        this.workers = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            BlockingQueue<MandrillEvent> queue = new ArrayBlockingQueue<>(capacity);
+            Thread worker = threadFactory.newThread(() -> work(queue));
+            queues.add(queue);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public MandrillWebhook on(MandrillEvent.Type type, Handler handler) {
+        return on(type, ANY_TAG, handler);
+    }
+
+    /**
+     * Handles the events of the given type for the messages having the given tag, as set by {@link MandrillConfig#addTag(String)}
+     */
+    public MandrillWebhook on(MandrillEvent.Type type, String tag, Handler handler) {
+        synchronized (routesLock) {
+            Map<MandrillEvent.Type, Map<String, Handler[]>> routes = new EnumMap<>(this.routes);
+            Map<String, Handler[]> byTag = new HashMap<>(routes.getOrDefault(type, Collections.emptyMap()));
+            Handler[] handlers = byTag.getOrDefault(tag, new Handler[0]);
+            handlers = Arrays.copyOf(handlers, handlers.length + 1);
+            handlers[handlers.length - 1] = handler;
+            byTag.put(tag, handlers);
+            routes.put(type, byTag);
+            this.routes = routes;
+        }
+        return this;
+    }
+
+    /**
+     * Decodes a webhook request body, checks its signature and queues its events.
+     *
+     * @param body      the form-encoded request body
+     * @param signature the X-Mandrill-Signature header
+     * @return the number of events received
+     * @throws SecurityException if the signature does not match
+     */
+    public int receive(InputStream body, String signature) throws IOException {
+        Mac mac = mac();
+        List<MandrillEvent> events = Collections.emptyList();
+        FormDecoder form = new FormDecoder(body, mac);
+        String previous = null;
+        for (String name; (name = form.nextName()) != null; ) {
+            // signed in name order
+            if (previous != null && previous.compareTo(name) > 0) throw new SecurityException("Unsigned parameter order: " + name);
+            previous = name;
+            form.sign(name);
+            if (EVENTS.equals(name)) {
+                events = decode(form.value());
+            } else {
+                form.skipValue();
+            }
+        }
+        if (mac != null && !matches(mac, signature)) throw new SecurityException("Invalid webhook signature");
+        dispatch(events);
+        return events.size();
+    }
+
+    /**
+     * Checks the signature of a webhook request which parameters were already decoded
+     */
+    public boolean verify(String signature, Map<String, String> parameters) {
+        Mac mac = mac();
+        if (mac == null) return true;
+        new TreeMap<>(parameters).forEach((name, value) -> {
+            mac.update(name.getBytes(StandardCharsets.UTF_8));
+            mac.update(value.getBytes(StandardCharsets.UTF_8));
+        });
+        return matches(mac, signature);
+    }
+
+    /**
+     * Decodes the value of the 'mandrill_events' parameter
+     */
+    public static List<MandrillEvent> decode(String events) {
+        return decode(MandrillRequestBody.PARSERS.createParser(new StringReader(events)));
+    }
+
+    /**
+     * Queues the events to be handled, waiting for some room if needed
+     */
+    public void dispatch(Collection<MandrillEvent> events) {
+        for (MandrillEvent event : events) {
+            BlockingQueue<MandrillEvent> queue = queues.get(queues.size() == 1 || event.getId() == null ? 0 : (int) ((MandrillAddress.hash(event.getId()) & Long.MAX_VALUE) % queues.size()));
+            try {
+                while (!queue.offer(event, POLL_NANOS, TimeUnit.NANOSECONDS)) {
+                    if (shutdown) throw new RejectedExecutionException("Webhook is shut down");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the event queue");
+            }
+            received.increment();
+        }
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<MandrillEvent> queue : queues) size += queue.size();
+        return size;
+    }
+
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    public long getHandledCount() {
+        return handled.sum();
+    }
+
+    /**
+     * @return the number of handler calls which threw an exception
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * Stops the workers once the queued events are handled.
+     *
+     * @return true if all were handled in time. Otherwise, the workers are interrupted.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown = true;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread worker : workers) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+        }
+        boolean drained = true;
+        for (Thread worker : workers) {
+            if (worker.isAlive()) {
+                worker.interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    @Override
+    public void close() {
+        try {
+            shutdown(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work(BlockingQueue<MandrillEvent> queue) {
+        while (true) {
+            MandrillEvent event;
+            try {
+                event = queue.poll(POLL_NANOS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (event == null) {
+                if (shutdown) return;
+                continue;
+            }
+            Map<String, Handler[]> byTag = routes.get(event.getType());
+            if (byTag != null) {
+                handle(byTag.get(ANY_TAG), event);
+                for (String tag : event.tags()) {
+                    handle(byTag.get(tag), event);
+                }
+            }
+            handled.increment();
+        }
+    }
+
+    private void handle(Handler[] handlers, MandrillEvent event) {
+        if (handlers == null) return;
+        for (Handler handler : handlers) {
+            try {
+                handler.handle(event);
+            } catch (RuntimeException e) {
+                failed.increment();
+                LOGGER.log(Level.WARNING, "Unable to handle " + event, e);
+            }
+        }
+    }
+
+    private Mac mac() {
+        if (key == null) return null;
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(key);
+            mac.update(url.getBytes(StandardCharsets.UTF_8));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean matches(Mac mac, String signature) {
+        if (signature == null) return false;
+        byte[] expected = Base64.getEncoder().encode(mac.doFinal());
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static List<MandrillEvent> decode(JsonParser parser) {
+        try {
+            if (!parser.hasNext()) return Collections.emptyList();
+            if (parser.next() != JsonParser.Event.START_ARRAY) {
+                throw new JsonParsingException("Expected an array of events", parser.getLocation());
+            }
+            List<MandrillEvent> events = new ArrayList<>();
+            for (JsonParser.Event event = parser.next(); event != JsonParser.Event.END_ARRAY; event = parser.next()) {
+                if (event == JsonParser.Event.START_OBJECT) {
+                    events.add(MandrillEvent.read(parser));
+                } else {
+                    MandrillSendResult.skip(parser, event);
+                }
+            }
+            return events;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static List<MandrillEvent> decode(FormDecoder.Value value) throws IOException {
+        List<MandrillEvent> events = decode(MandrillRequestBody.PARSERS.createParser(value, StandardCharsets.UTF_8));
+        // the rest of the value is signed too
+        value.skip();
+        return events;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Url-decodes a form while reading it, feeding the decoded bytes of the names and values to the signature
+     */
+    private static final class FormDecoder {
+        private final InputStream in;
+        private final Mac mac;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+        private boolean eof;
+
+        FormDecoder(InputStream in, Mac mac) {
+            this.in = in;
+            this.mac = mac;
+        }
+
+        String nextName() throws IOException {
+            ByteArrayOutputStream name = new ByteArrayOutputStream(32);
+            for (int b; (b = decoded('=')) >= 0; ) name.write(b);
+            if (name.size() == 0 && eof) return null;
+            return name.toString(StandardCharsets.UTF_8.name());
+        }
+
+        void sign(String name) {
+            if (mac != null) mac.update(name.getBytes(StandardCharsets.UTF_8));
+        }
+
+        Value value() {
+            return new Value();
+        }
+
+        void skipValue() throws IOException {
+            new Value().skip();
+        }
+
+        // the next decoded byte, or -1 at the end of the form or at the given delimiter
+        private int decoded(char delimiter) throws IOException {
+            int b = raw();
+            if (b < 0 || b == delimiter || b == '&') return -1;
+            if (b == '+') return ' ';
+            if (b == '%') {
+                int high = Character.digit(raw(), 16);
+                int low = Character.digit(raw(), 16);
+                if (high < 0 || low < 0) throw new IOException("Invalid url-encoded form");
+                return high << 4 | low;
+            }
+            return b;
+        }
+
+        private int raw() throws IOException {
+            if (position == limit) {
+                if (eof) return -1;
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    eof = true;
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        final class Value extends InputStream {
+            private boolean end;
+
+            @Override
+            public int read() throws IOException {
+                if (end) return -1;
+                int b = decoded('&');
+                if (b < 0) {
+                    end = true;
+                    return -1;
+                }
+                if (mac != null) mac.update((byte) b);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                int n = 0;
+                while (n < len) {
+                    int c = end ? -1 : decoded('&');
+                    if (c < 0) {
+                        end = true;
+                        break;
+                    }
+                    b[off + n++] = (byte) c;
+                }
+                if (n == 0) return -1;
+                if (mac != null) mac.update(b, off, n);
+                return n;
+            }
+
+            void skip() throws IOException {
+                byte[] discarded = new byte[512];
+                while (read(discarded, 0, discarded.length) >= 0) {
+                }
+            }
+        }
+    }
+
+}
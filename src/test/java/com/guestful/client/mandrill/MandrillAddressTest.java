@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillAddressTest {
+
+    // the pattern previously used by MandrillAddress
+    private static final Pattern PATTERN_EMAIL = Pattern.compile("[a-z0-9!#$%&'*+/=?^_`{|}~-]+(?:\\.[a-z0-9!#$%&'*+/=?^_`{|}~-]+)*@(?:[a-z0-9](?:[a-z0-9-]*[a-z0-9])?\\.)+[a-z0-9](?:[a-z0-9-]*[a-z0-9])?", Pattern.CASE_INSENSITIVE);
+
+    private static final String ALPHABET = "aZ09.@-_+!`{~\u00e9\u212a\u0130 \n";
+
+    @Test
+    public void same_language_as_pattern() {
+        String[] emails = {
+            "", "@", "a@b", "a@b.c", "A@B.CO", "a.b@c.d", ".a@b.c", "a.@b.c", "a..b@c.d", "a@-b.c", "a@b-.c", "a@b.c-", "a@b..c",
+            "a@b.c.", "a@.b.c", "a@@b.c", "a@b@c.d", "a-b@c-d.e-f", "!#$%&'*+/=?^_`{|}~-@x.y", "a b@c.d", "\u00e9@b.c", "a@b.c\u00e9",
+            "\u212a@b.c", "a@\u0130.c", "math@guestful.com", "backend-continuous-build@guestful.com"};
+        for (String email : emails) {
+            assertEquals(email, PATTERN_EMAIL.matcher(email).matches(), MandrillAddress.isValidEmail(email));
+        }
+        Random random = new Random(0);
+        for (int i = 0; i < 200_000; i++) {
+            char[] chars = new char[random.nextInt(12)];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            String email = new String(chars);
+            assertEquals(email, PATTERN_EMAIL.matcher(email).matches(), MandrillAddress.isValidEmail(email));
+        }
+        for (char c = 0; c < 0x3000; c++) {
+            String email = "a" + c + "@b" + c + ".c";
+            assertEquals(email, PATTERN_EMAIL.matcher(email).matches(), MandrillAddress.isValidEmail(email));
+        }
+        assertFalse(MandrillAddress.isValidEmail(null));
+    }
+
+    @Test
+    public void intern() {
+        MandrillAddress address = MandrillAddress.intern("Guestful", "info@guestful.com");
+        assertSame(address, MandrillAddress.intern("Guestful", "info@guestful.com"));
+        assertNotSame(address, MandrillAddress.intern("Other", "info@guestful.com"));
+        assertEquals("Other", MandrillAddress.intern("Other", "info@guestful.com").getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intern_validates() {
+        MandrillAddress.intern("bad@");
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillAttachmentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void stream_base64_content() throws IOException {
+        Random random = new Random(0);
+        for (int size : new int[]{0, 1, 2, 3, 4, 49151, 49152, 49153, 200_000}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            Path file = folder.newFile("file-" + size + ".pdf").toPath();
+            Files.write(file, bytes);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator generator = Json.createGenerator(out);
+            generator.writeStartArray();
+            new MandrillAttachment("application/pdf", "invoice.pdf", file).writeTo(generator, out);
+            new MandrillAttachment("image/png", "logo", file).writeTo(generator, out);
+            generator.writeEnd();
+            generator.close();
+
+            JsonArray array = Json.createReader(new ByteArrayInputStream(out.toByteArray())).readArray();
+            assertEquals(2, array.size());
+            JsonObject attachment = array.getJsonObject(0);
+            assertEquals("application/pdf", attachment.getString("type"));
+            assertEquals("invoice.pdf", attachment.getString("name"));
+            assertEquals(Base64.getEncoder().encodeToString(bytes), attachment.getString("content"));
+            assertEquals(attachment.getString("content"), array.getJsonObject(1).getString("content"));
+            assertEquals(attachment, new MandrillAttachment("application/pdf", "invoice.pdf", file).toJson());
+        }
+    }
+
+}
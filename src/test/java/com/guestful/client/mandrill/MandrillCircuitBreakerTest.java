@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillCircuitBreakerTest {
+
+    @Test
+    public void open_on_failure_rate() {
+        MandrillCircuitBreaker breaker = new MandrillCircuitBreaker(4, 0.5, 1, 1, 1, TimeUnit.HOURS);
+        breaker.onSuccess(0);
+        breaker.onFailure(0);
+        breaker.onSuccess(0);
+        assertEquals(MandrillCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure(0);
+        assertEquals(MandrillCircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void open_on_slow_calls() {
+        MandrillCircuitBreaker breaker = new MandrillCircuitBreaker(3, 1, 100, 0.6, 60_000, TimeUnit.MILLISECONDS);
+        breaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        breaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(150));
+        breaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(MandrillCircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onSuccess(TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(MandrillCircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void half_open_probe() throws InterruptedException {
+        MandrillCircuitBreaker breaker = new MandrillCircuitBreaker(1, 1, 1, 1, 10, TimeUnit.MILLISECONDS);
+        breaker.onFailure(0);
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(20);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(MandrillCircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        breaker.onFailure(0);
+        assertEquals(MandrillCircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(20);
+
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.onSuccess(0));
+        assertEquals(MandrillCircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+}
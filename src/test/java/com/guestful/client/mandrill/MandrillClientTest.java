@@ -15,6 +15,7 @@
  */
 package com.guestful.client.mandrill;
 
+import com.sun.net.httpserver.HttpServer;
 import org.glassfish.jersey.jsonp.JsonProcessingFeature;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -25,8 +26,24 @@ import org.slf4j.bridge.SLF4JBridgeHandler;
 
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.LogManager;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
@@ -68,4 +85,109 @@ public class MandrillClientTest {
         System.out.println(rendered);
     }
 
+    @Test
+    public void send_small_bodies_uncompressed() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        List<long[]> compressions = new ArrayList<>();
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key").setCompressionThreshold(10_000));
+        client.setMetricsListener(listener(compressions));
+
+        message(client, "<p>See you soon</p>").send();
+
+        assertNull(transport.encodings.get(0));
+        assertEquals("<p>See you soon</p>", transport.message(0).getString("html"));
+        assertTrue(compressions.isEmpty());
+    }
+
+    @Test
+    public void compress_large_bodies_over_http_url_connection() throws Exception {
+        compress_large_bodies(uri -> new MandrillHttpTransport().setBaseUri(uri));
+    }
+
+    @Test
+    public void compress_large_bodies_over_jax_rs() throws Exception {
+        Client restClient = ClientBuilder.newClient();
+        try {
+            compress_large_bodies(uri -> new MandrillJaxRsTransport(restClient.target(uri)));
+        } finally {
+            restClient.close();
+        }
+    }
+
+    private void compress_large_bodies(Function<String, MandrillTransport> transports) throws Exception {
+        List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+        List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            try (InputStream in = exchange.getRequestBody()) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) >= 0; ) body.write(buffer, 0, n);
+                bodies.add(body.toByteArray());
+            }
+            byte[] response = "[]".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        String uri = "http://127.0.0.1:" + server.getAddress().getPort();
+        try (MandrillTransport plainTransport = transports.apply(uri);
+             MandrillTransport compressingTransport = transports.apply(uri)) {
+            char[] chars = new char[50_000];
+            Arrays.fill(chars, 'x');
+            String html = "<p>" + new String(chars) + "</p>";
+            List<long[]> compressions = new ArrayList<>();
+            MandrillClient plain = new MandrillClient(plainTransport, new MandrillConfig().setApiKey("key"));
+            MandrillClient compressing = new MandrillClient(compressingTransport, new MandrillConfig().setApiKey("key").setCompressionThreshold(1024));
+            compressing.setMetricsListener(listener(compressions));
+
+            message(plain, html).sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+            message(compressing, html).sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+            assertEquals(2, bodies.size());
+            assertNull(encodings.get(0));
+            assertEquals("gzip", encodings.get(1));
+            assertTrue(bodies.get(1).length < bodies.get(0).length / 10);
+            assertArrayEquals(bodies.get(0), RecordingTransport.gunzip(bodies.get(1)));
+            assertEquals(1, compressions.size());
+            assertEquals(bodies.get(0).length, compressions.get(0)[0]);
+            assertEquals(bodies.get(1).length, compressions.get(0)[1]);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static MandrillMessage message(MandrillClient client, String html) {
+        return client.createMandrillMessage()
+            .from("noreply@example.com")
+            .subject("Your reservation")
+            .html(html)
+            .to("guest@example.com");
+    }
+
+    private static MandrillMetricsListener listener(List<long[]> compressions) {
+        return new MandrillMetricsListener() {
+            @Override
+            public void onRequest(String path, String template, int status, long latencyNanos, long requestBytes) {
+            }
+
+            @Override
+            public void onRetry(String path, String template) {
+            }
+
+            @Override
+            public void onRejection(String path, String template) {
+            }
+
+            @Override
+            public void onCompression(String path, String template, long bytes, long compressedBytes, long compressionNanos) {
+                compressions.add(new long[]{bytes, compressedBytes});
+            }
+        };
+    }
+
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillCoalescingSenderTest {
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private final MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+
+    @Test
+    public void merge_messages_and_demux_results() throws Exception {
+        try (MandrillCoalescingSender sender = new MandrillCoalescingSender(1, TimeUnit.MINUTES, 100)) {
+            CompletableFuture<List<MandrillSendResult>> a = submit(sender, message("a@example.com").set("NAME", "A"));
+            CompletableFuture<List<MandrillSendResult>> b = submit(sender, message("B@Example.com").set("NAME", "B").set("TABLE", "12"));
+            MandrillMessage c = message("c@example.com").set("NAME", "global");
+            c.getMergeVars("c@example.com").set("NAME", "C");
+            CompletableFuture<List<MandrillSendResult>> cf = submit(sender, c);
+            assertEquals(0, transport.size());
+            sender.flush();
+
+            assertEquals(1, transport.size());
+            assertEquals("messages/send-template.json", transport.paths.get(0));
+            JsonObject message = transport.message(0);
+            assertEquals(3, message.getJsonArray("to").size());
+            assertEquals(0, message.getJsonArray("global_merge_vars").size());
+            // global vars folded in the recipient vars, which win over them
+            JsonArray mergeVars = message.getJsonArray("merge_vars");
+            assertEquals("B@Example.com", mergeVars.getJsonObject(1).getString("rcpt"));
+            assertEquals("[{\"name\":\"NAME\",\"content\":\"B\"},{\"name\":\"TABLE\",\"content\":\"12\"}]", mergeVars.getJsonObject(1).getJsonArray("vars").toString());
+            assertEquals("[{\"name\":\"NAME\",\"content\":\"C\"}]", mergeVars.getJsonObject(2).getJsonArray("vars").toString());
+
+            assertEquals("a@example.com", only(a).getEmail());
+            assertEquals("B@Example.com", only(b).getEmail());
+            assertEquals("id-c@example.com", only(cf).getId());
+        }
+    }
+
+    @Test
+    public void split_at_max_recipients() throws Exception {
+        try (MandrillCoalescingSender sender = new MandrillCoalescingSender(1, TimeUnit.MINUTES, 2)) {
+            CompletableFuture<List<MandrillSendResult>> a = submit(sender, message("a@example.com"));
+            CompletableFuture<List<MandrillSendResult>> b = submit(sender, message("b@example.com"));
+            assertEquals(1, transport.size());
+            assertEquals(2, transport.message(0).getJsonArray("to").size());
+            CompletableFuture<List<MandrillSendResult>> c = submit(sender, message("c@example.com"));
+            sender.flush();
+            assertEquals(2, transport.size());
+            assertEquals(1, transport.message(1).getJsonArray("to").size());
+            assertEquals("a@example.com", only(a).getEmail());
+            assertEquals("b@example.com", only(b).getEmail());
+            assertEquals("c@example.com", only(c).getEmail());
+        }
+    }
+
+    @Test
+    public void detach_batch_on_overlapping_recipient() throws Exception {
+        try (MandrillCoalescingSender sender = new MandrillCoalescingSender(1, TimeUnit.MINUTES, 100)) {
+            CompletableFuture<List<MandrillSendResult>> first = submit(sender, message("a@example.com").set("NAME", "first"));
+            assertEquals(0, transport.size());
+            CompletableFuture<List<MandrillSendResult>> second = submit(sender, message("A@example.com").set("NAME", "second"));
+            assertEquals(1, transport.size());
+            assertTrue(first.isDone());
+            sender.flush();
+            assertEquals(2, transport.size());
+            assertEquals("first", transport.message(0).getJsonArray("global_merge_vars").getJsonObject(0).getString("content"));
+            assertEquals("second", transport.message(1).getJsonArray("global_merge_vars").getJsonObject(0).getString("content"));
+            assertEquals("A@example.com", only(second).getEmail());
+        }
+    }
+
+    @Test
+    public void fail_all_entries_of_a_batch_which_cannot_be_sent() throws Exception {
+        MandrillClient noKey = new MandrillClient(transport, new MandrillConfig());
+        try (MandrillCoalescingSender sender = new MandrillCoalescingSender(10, TimeUnit.MILLISECONDS, 100)) {
+            CompletableFuture<List<MandrillSendResult>> a = sender.submit(noKey.getTemplate("reminder").createMandrillMessage().to("a@example.com")).toCompletableFuture();
+            CompletableFuture<List<MandrillSendResult>> b = sender.submit(noKey.getTemplate("reminder").createMandrillMessage().to("b@example.com")).toCompletableFuture();
+            // flushed by the window timer
+            for (CompletableFuture<List<MandrillSendResult>> future : Arrays.asList(a, b)) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                    fail();
+                } catch (ExecutionException expected) {
+                }
+            }
+        }
+        assertEquals(0, transport.size());
+    }
+
+    @Test
+    public void fail_submits_once_closed() throws Exception {
+        MandrillCoalescingSender sender = new MandrillCoalescingSender(1, TimeUnit.MINUTES, 100);
+        sender.close();
+        CompletableFuture<List<MandrillSendResult>> future = submit(sender, message("a@example.com"));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        // nothing left behind
+        sender.flush();
+        assertEquals(0, transport.size());
+    }
+
+    private MandrillMessage message(String to) {
+        return client.getTemplate("reminder").createMandrillMessage()
+            .from("noreply@example.com")
+            .subject("Your reservation")
+            .to(to);
+    }
+
+    private static CompletableFuture<List<MandrillSendResult>> submit(MandrillCoalescingSender sender, MandrillMessage message) {
+        return sender.submit(message).toCompletableFuture();
+    }
+
+    private static MandrillSendResult only(CompletableFuture<List<MandrillSendResult>> future) throws Exception {
+        List<MandrillSendResult> results = future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, results.size());
+        return results.get(0);
+    }
+
+}
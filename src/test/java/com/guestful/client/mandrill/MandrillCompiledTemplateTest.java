@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillCompiledTemplateTest {
+
+    @Test
+    public void render_merge_tags() {
+        Map<String, String> vars = new HashMap<>();
+        vars.put("NAME", "Mathieu");
+        assertEquals("Hello Mathieu, see you !", MandrillCompiledTemplate.compile("Hello *|name|*, see you *|WHEN|*!").render(vars::get));
+        assertEquals("no tag | here *|", MandrillCompiledTemplate.compile("no tag | here *|").render(vars::get));
+    }
+
+    @Test
+    public void render_conditionals() {
+        MandrillCompiledTemplate template = MandrillCompiledTemplate.compile("[*|IF:A|*a*|IF:B|*b*|END:IF|**|ELSEIF:C|*c*|ELSE:|*none*|END:IF|*]");
+        Map<String, String> vars = new HashMap<>();
+        assertEquals("[none]", template.render(vars::get));
+        vars.put("C", "1");
+        assertEquals("[c]", template.render(vars::get));
+        vars.put("A", "1");
+        assertEquals("[a]", template.render(vars::get));
+        vars.put("B", "1");
+        assertEquals("[ab]", template.render(vars::get));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupported_modifier() {
+        MandrillCompiledTemplate.compile("*|HTML:NAME|*");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupported_comparison() {
+        MandrillCompiledTemplate.compile("*|IF:NAME=Bob|*Bob*|END:IF|*");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupported_built_in() {
+        MandrillCompiledTemplate.compile("<a href=\"*|UNSUB|*\">unsubscribe</a>");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unbalanced_conditional() {
+        MandrillCompiledTemplate.compile("*|IF:A|*a");
+    }
+
+    @Test
+    public void fetch_again_after_a_request_which_cannot_be_made() throws Exception {
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            protected JsonValue respond(JsonObject body) {
+                return Json.createObjectBuilder().add("code", "Hello *|NAME|*").build();
+            }
+        };
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig());
+        MandrillTemplate template = client.getTemplate("reminder");
+        MandrillVars vars = new MandrillVars().set("NAME", "Mathieu");
+
+        CompletableFuture<String> failed = template.renderAsync(vars).toCompletableFuture();
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, transport.size());
+
+        client.getConfig().setApiKey("key");
+        assertEquals("Hello Mathieu", template.renderAsync(vars).toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals("templates/info.json", transport.paths.get(0));
+    }
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.ws.rs.ProcessingException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillHttpTransportTest {
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> ports = Collections.synchronizedList(new ArrayList<>());
+    private HttpServer server;
+    private MandrillHttpTransport transport;
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            ports.add(exchange.getRemoteAddress().getPort());
+            String body = read(exchange.getRequestBody());
+            requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + exchange.getRequestHeaders().getFirst("Content-Type") + " " + body);
+            String path = exchange.getRequestURI().getPath();
+            if (path.endsWith("/ping.json")) respond(exchange, 200, "\"PONG!\"");
+            else if (path.endsWith("/large.json")) respond(exchange, 200, "[" + String.join(",", Collections.nCopies(10_000, "\"0123456789\"")) + "]");
+            else if (path.endsWith("/invalid.json")) respond(exchange, 500, "{\"status\":\"error\",\"code\":-1,\"name\":\"Invalid_Key\",\"message\":\"Invalid API key\"}");
+            else respond(exchange, 404, null);
+        });
+        server.start();
+        transport = new MandrillHttpTransport().setBaseUri("http://127.0.0.1:" + server.getAddress().getPort() + "/api/1.0/");
+    }
+
+    @After
+    public void stop() {
+        transport.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void send_the_body_and_read_the_response() throws Exception {
+        try (MandrillResponse response = send("users/ping.json", "{\"key\":\"key\"}")) {
+            assertEquals(200, response.getStatus());
+            assertEquals("OK", response.getReasonPhrase());
+            assertTrue(response.hasEntity());
+            assertEquals("\"PONG!\"", response.readString());
+        }
+        assertEquals("POST /api/1.0/users/ping.json application/json; charset=UTF-8 {\"key\":\"key\"}", requests.get(0));
+    }
+
+    @Test
+    public void read_the_error_body() throws Exception {
+        try (MandrillResponse response = send("users/invalid.json", "{}")) {
+            assertEquals(500, response.getStatus());
+            MandrillException error = new MandrillException(response, null);
+            assertEquals("Invalid_Key", error.getName());
+            assertFalse(error.isRetryable());
+        }
+        try (MandrillResponse response = send("users/unknown.json", "{}")) {
+            assertEquals(404, response.getStatus());
+            assertEquals("", response.readString());
+        }
+    }
+
+    @Test
+    public void reuse_the_connection_once_an_unread_response_is_closed() throws Exception {
+        send("users/large.json", "{}").close();
+        try (MandrillResponse response = send("users/ping.json", "{}")) {
+            assertEquals("\"PONG!\"", response.readString());
+        }
+        assertEquals(2, ports.size());
+        assertEquals(ports.get(0), ports.get(1));
+    }
+
+    @Test
+    public void drain_and_close_the_entity_before_releasing_the_response() throws Exception {
+        List<String> events = new ArrayList<>();
+        InputStream entity = new ByteArrayInputStream(new byte[10_000]) {
+            @Override
+            public void close() {
+                events.add("closed after reading " + pos + " bytes");
+            }
+        };
+        new MandrillResponse(200, "OK", entity, () -> events.add("released")).close();
+        assertEquals(Arrays.asList("closed after reading 10000 bytes", "released"), events);
+    }
+
+    @Test
+    public void report_io_errors_as_processing_exceptions() throws Exception {
+        server.stop(0);
+        try {
+            send("users/ping.json", "{}");
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ProcessingException);
+            assertTrue(MandrillRetryPolicy.isRetryable(e.getCause()));
+        }
+    }
+
+    @Test
+    public void fail_when_the_entity_cannot_be_written() throws Exception {
+        AtomicBoolean written = new AtomicBoolean();
+        try {
+            transport.send("POST", "users/ping.json", out -> {
+                written.set(true);
+                throw new IllegalStateException("boom");
+            }).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(written.get());
+            assertEquals("boom", e.getCause().getMessage());
+        }
+    }
+
+    private MandrillResponse send(String path, String body) throws Exception {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return transport.send("POST", path, out -> out.write(bytes)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[8192];
+            StringBuilder sb = new StringBuilder();
+            for (int n; (n = stream.read(buffer)) >= 0; ) sb.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+            return sb.toString();
+        }
+    }
+
+}
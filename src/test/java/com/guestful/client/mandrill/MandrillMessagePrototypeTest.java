@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.JsonObject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillMessagePrototypeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private final MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key").addTag("reminder"));
+
+    @Test
+    public void send_the_body_of_the_equivalent_message() throws Exception {
+        assertEquals(sent(message(false).to("guest@example.com")), sent(prototype(false).to("guest@example.com")));
+    }
+
+    @Test
+    public void send_the_body_of_the_equivalent_message_with_attachments_and_merge_vars() throws Exception {
+        MandrillMessage message = message(true).to("Alice", "alice@example.com").to("bob@example.com");
+        message.getMergeVars("alice@example.com").set("TABLE", 12);
+        message.getMergeVars("bob@example.com").set("TABLE", 4).set("NAME", "Bob");
+
+        MandrillMessagePrototype.Instance instance = prototype(true).to("Alice", "alice@example.com").to("bob@example.com");
+        instance.getMergeVars("alice@example.com").set("TABLE", 12);
+        instance.getMergeVars("bob@example.com").set("TABLE", 4).set("NAME", "Bob");
+
+        JsonObject expected = sent(message);
+        assertEquals(expected, sent(instance));
+        assertEquals(2, expected.getJsonObject("message").getJsonArray("attachments").size());
+        assertEquals(1, expected.getJsonObject("message").getJsonArray("images").size());
+    }
+
+    @Test
+    public void log_the_body_sent() throws Exception {
+        List<MandrillRequestBody> logged = new CopyOnWriteArrayList<>();
+        client.setRequestLogger(new MandrillRequestLogger() {
+            @Override
+            void log(MandrillRequest request) {
+                logged.add(request.body);
+            }
+        });
+        MandrillMessagePrototype.Instance instance = prototype(true).to("Alice", "alice@example.com").to("bob@example.com").set("NAME", "Guest");
+        instance.getMergeVars("bob@example.com").set("TABLE", 4);
+
+        JsonObject sent = sent(instance);
+        MandrillRequestLogger logger = new MandrillRequestLogger().setMaxLength(Integer.MAX_VALUE);
+        assertEquals(1, logged.size());
+        assertEquals(logger.format(MandrillRequestBody.of(sent)), logger.format(logged.get(0)));
+    }
+
+    @Test
+    public void send_the_instance_as_it_was_when_sent() throws Exception {
+        // the body is only written once the transport is released
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+                return released.thenCompose(v -> super.send(method, path, entity));
+            }
+        };
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        MandrillMessagePrototype.Instance instance = client.getTemplate("reminder").createMandrillMessage()
+            .from("noreply@example.com")
+            .freeze()
+            .instance()
+            .to("a@example.com")
+            .set("NAME", "A");
+        instance.getMergeVars("a@example.com").set("TABLE", 12);
+
+        CompletableFuture<List<MandrillSendResult>> sent = instance.sendAsync().toCompletableFuture();
+        instance.to("b@example.com").set("NAME", "B").getMergeVars("a@example.com").set("TABLE", 4);
+        released.complete(null);
+
+        assertEquals(1, sent.get(5, TimeUnit.SECONDS).size());
+        JsonObject message = transport.message(0);
+        assertEquals(1, message.getJsonArray("to").size());
+        assertEquals("[{\"name\":\"TABLE\",\"content\":\"12\"},{\"name\":\"NAME\",\"content\":\"A\"}]", message.getJsonArray("merge_vars").getJsonObject(0).getJsonArray("vars").toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void reject_a_shared_body_which_is_not_closed() {
+        new MandrillMessagePrototype(client, null, "messages/send.json", null, MandrillRequestBody.of("{\"message\":{}".getBytes()));
+    }
+
+    private MandrillMessage message(boolean attachments) throws Exception {
+        MandrillMessage message = client.getTemplate("reminder").createMandrillMessage()
+            .from("Guestful", "noreply@example.com")
+            .subject("Your reservation")
+            .set("RESTAURANT", "Chez Guestful")
+            .set("GUESTS", 2);
+        if (attachments) {
+            Path file = folder.getRoot().toPath().resolve("invoice.pdf");
+            Files.write(file, new byte[]{1, 2, 3, 4, 5});
+            message.attach(file, "application/pdf").attach("menu.pdf", file, "application/pdf").image("logo", file, "image/png");
+        }
+        return message;
+    }
+
+    private MandrillMessagePrototype.Instance prototype(boolean attachments) throws Exception {
+        return message(attachments).freeze().instance();
+    }
+
+    private JsonObject sent(MandrillMessage message) throws Exception {
+        message.sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        return transport.json(transport.size() - 1);
+    }
+
+    private JsonObject sent(MandrillMessagePrototype.Instance instance) throws Exception {
+        instance.sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        return transport.json(transport.size() - 1);
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillMessageTest {
+
+    @Test
+    public void send_the_message_as_it_was_when_sent() throws Exception {
+        // the body is only written once the transport is released
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+                return released.thenCompose(v -> super.send(method, path, entity));
+            }
+        };
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        MandrillMessage message = client.createMandrillMessage()
+            .from("noreply@example.com")
+            .subject("Your reservation")
+            .html("<p>*|NAME|*, table *|TABLE|*</p>")
+            .to("a@example.com")
+            .set("NAME", "A");
+        message.getMergeVars("a@example.com").set("TABLE", 12);
+
+        CompletableFuture<List<MandrillSendResult>> first = message.sendAsync().toCompletableFuture();
+        message.subject("Your cancellation").html("<p>bye</p>").tag("cancel").to("b@example.com").set("NAME", "B");
+        message.getMergeVars("a@example.com").set("TABLE", 4);
+        CompletableFuture<List<MandrillSendResult>> second = message.sendAsync().toCompletableFuture();
+        released.complete(null);
+
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, second.get(5, TimeUnit.SECONDS).size());
+        // both requests are released together, in any order
+        int index = transport.message(0).getJsonArray("to").size() == 1 ? 0 : 1;
+        JsonObject sent = transport.message(index);
+        assertEquals("Your reservation", sent.getString("subject"));
+        assertEquals("<p>*|NAME|*, table *|TABLE|*</p>", sent.getString("html"));
+        assertEquals("[]", sent.getJsonArray("tags").toString());
+        assertEquals("[{\"name\":\"NAME\",\"content\":\"A\"}]", sent.getJsonArray("global_merge_vars").toString());
+        assertEquals("[{\"name\":\"TABLE\",\"content\":\"12\"}]", sent.getJsonArray("merge_vars").getJsonObject(0).getJsonArray("vars").toString());
+        JsonObject resent = transport.message(1 - index);
+        assertEquals("Your cancellation", resent.getString("subject"));
+        assertEquals("[\"cancel\"]", resent.getJsonArray("tags").toString());
+        assertEquals("[{\"name\":\"TABLE\",\"content\":\"4\"}]", resent.getJsonArray("merge_vars").getJsonObject(0).getJsonArray("vars").toString());
+    }
+
+    @Test
+    public void send_async() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+
+        List<MandrillSendResult> results = client.createMandrillMessage()
+            .from("noreply@example.com")
+            .to("a@example.com")
+            .to("b@example.com")
+            .sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, results.size());
+        assertEquals("a@example.com", results.get(0).getEmail());
+        assertEquals("messages/send.json", transport.paths.get(0));
+    }
+
+    @Test
+    public void render_async() throws Exception {
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            protected JsonValue respond(JsonObject body) {
+                return Json.createObjectBuilder().add("html", "<p>" + body.getJsonArray("merge_vars").getJsonObject(0).getString("content") + "</p>").build();
+            }
+        };
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+
+        String html = client.getTemplate("reminder").createMandrillMessage()
+            .set("NAME", "A")
+            .renderAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals("<p>A</p>", html);
+        assertEquals("templates/render.json", transport.paths.get(0));
+        assertEquals("reminder", transport.json(0).getString("template_name"));
+    }
+
+    @Test
+    public void fail_send_async_with_the_mandrill_error() throws Exception {
+        CompletableFuture<List<MandrillSendResult>> sent = failing().createMandrillMessage()
+            .from("noreply@example.com")
+            .to("a@example.com")
+            .sendAsync().toCompletableFuture();
+        try {
+            sent.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(MandrillException.class, e.getCause().getClass());
+            assertEquals("Invalid_Key", ((MandrillException) e.getCause()).getName());
+        }
+    }
+
+    @Test
+    public void fail_render_async_with_the_mandrill_error() throws Exception {
+        CompletableFuture<String> rendered = failing().getTemplate("reminder").createMandrillMessage().renderAsync().toCompletableFuture();
+        try {
+            rendered.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(MandrillException.class, e.getCause().getClass());
+            assertEquals("Invalid_Key", ((MandrillException) e.getCause()).getName());
+        }
+    }
+
+    @Test
+    public void throw_the_mandrill_error_when_sending() {
+        try {
+            failing().createMandrillMessage().from("noreply@example.com").to("a@example.com").send();
+            fail();
+        } catch (MandrillException e) {
+            assertEquals("Invalid_Key", e.getName());
+            assertEquals(500, e.getStatusType().getStatusCode());
+        }
+    }
+
+    @Test
+    public void throw_the_mandrill_error_when_rendering() {
+        try {
+            failing().getTemplate("reminder").createMandrillMessage().render();
+            fail();
+        } catch (MandrillException e) {
+            assertEquals("Invalid_Key", e.getName());
+        }
+    }
+
+    // a client whose requests all fail with a permanent Mandrill error
+    private static MandrillClient failing() {
+        MandrillTransport transport = (method, path, entity) -> CompletableFuture.completedFuture(new MandrillResponse(500, "Internal Server Error",
+            new ByteArrayInputStream("{\"status\":\"error\",\"code\":-1,\"name\":\"Invalid_Key\",\"message\":\"Invalid API key\"}".getBytes(StandardCharsets.UTF_8)), null));
+        return new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillMetricsTest {
+
+    @Test
+    public void bucket_values_within_6_percent() {
+        Random random = new Random(0);
+        int previous = -1;
+        for (long value = 0; value < 100_000; value++) {
+            previous = checkBucket(value, previous);
+        }
+        for (int i = 0; i < 100_000; i++) {
+            checkBucket(random.nextLong() >>> (1 + random.nextInt(63)), -1);
+        }
+        checkBucket(Long.MAX_VALUE, -1);
+        assertEquals(Long.MAX_VALUE, MandrillMetrics.Histogram.value(MandrillMetrics.Histogram.index(Long.MAX_VALUE)));
+        // small values are exact
+        for (int value = 0; value < 16; value++) {
+            assertEquals(value, MandrillMetrics.Histogram.value(MandrillMetrics.Histogram.index(value)));
+        }
+    }
+
+    @Test
+    public void compute_percentiles() {
+        MandrillMetrics metrics = new MandrillMetrics();
+        for (int micros = 10; micros >= 1; micros--) {
+            metrics.onRequest("messages/send.json", null, 200, TimeUnit.MICROSECONDS.toNanos(micros), 100);
+        }
+        MandrillMetrics.Snapshot snapshot = metrics.snapshot().get(0);
+        assertEquals(1, snapshot.getLatency(0, TimeUnit.MICROSECONDS));
+        assertEquals(1, snapshot.getLatency(10, TimeUnit.MICROSECONDS));
+        assertEquals(2, snapshot.getLatency(10.1, TimeUnit.MICROSECONDS));
+        assertEquals(5, snapshot.getLatency(50, TimeUnit.MICROSECONDS));
+        assertEquals(9, snapshot.getLatency(90, TimeUnit.MICROSECONDS));
+        assertEquals(10, snapshot.getLatency(99.9, TimeUnit.MICROSECONDS));
+        assertEquals(10, snapshot.getLatency(100, TimeUnit.MICROSECONDS));
+        assertEquals(10, snapshot.getRequestCount());
+        assertEquals(1000, snapshot.getRequestBytes());
+    }
+
+    @Test
+    public void compute_percentiles_within_the_bucket_precision() {
+        MandrillMetrics metrics = new MandrillMetrics();
+        for (int millis = 1; millis <= 1000; millis++) {
+            metrics.onRequest("messages/send.json", "reminder", millis % 100 == 0 ? 500 : 200, TimeUnit.MILLISECONDS.toNanos(millis), 100);
+        }
+        metrics.onRequest("messages/send.json", "reminder", 0, TimeUnit.SECONDS.toNanos(30), 100);
+        MandrillMetrics.Snapshot snapshot = metrics.snapshot().get(0);
+        assertEquals("reminder", snapshot.getTemplate());
+        for (int percentile : new int[]{1, 25, 50, 75, 90, 99}) {
+            long expected = TimeUnit.MILLISECONDS.toMicros((long) Math.ceil(percentile / 100d * 1001));
+            long latency = snapshot.getLatency(percentile, TimeUnit.MICROSECONDS);
+            assertTrue(percentile + ": " + latency, latency >= expected && latency <= expected + expected / 16);
+        }
+        assertEquals(30, snapshot.getLatency(100, TimeUnit.SECONDS));
+        assertEquals(990, snapshot.getStatusCount(2));
+        assertEquals(10, snapshot.getStatusCount(5));
+        assertEquals(1, snapshot.getStatusCount(0));
+    }
+
+    @Test
+    public void report_no_latency_without_request() {
+        MandrillMetrics metrics = new MandrillMetrics();
+        metrics.onRetry("messages/send.json", null);
+        assertEquals(0, metrics.snapshot().get(0).getLatency(50, TimeUnit.MILLISECONDS));
+    }
+
+    // the bucket of a value ends at or after it, by 1/16th at most, and starts after the previous bucket
+    private static int checkBucket(long value, int previous) {
+        int index = MandrillMetrics.Histogram.index(value);
+        long high = MandrillMetrics.Histogram.value(index);
+        assertTrue(value + " -> " + high, high >= value && high - value <= value / 16);
+        assertTrue(value + " -> " + index, index == 0 || MandrillMetrics.Histogram.value(index - 1) < value);
+        assertTrue(value + " -> " + index, index >= previous);
+        return index;
+    }
+
+}
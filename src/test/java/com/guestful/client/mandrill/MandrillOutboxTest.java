@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MandrillOutbox> outboxes = new ArrayList<>();
+
+    @After
+    public void close() {
+        outboxes.forEach(MandrillOutbox::close);
+    }
+
+    @Test
+    public void recover_pending_entries_after_a_crash() throws Exception {
+        MandrillOutbox outbox = open(1024);
+        long a = append(outbox, "messages/send.json", "{\"a\":1}");
+        long b = append(outbox, "messages/send-template.json", "{\"b\":2}");
+
+        // the first outbox is never closed, as if the process died
+        List<MandrillOutbox.Entry> recovered = open(1024).getRecovered();
+        assertEquals(2, recovered.size());
+        assertEquals(a, recovered.get(0).getId());
+        assertEquals("messages/send.json", recovered.get(0).getPath());
+        assertEquals("{\"a\":1}", new String(recovered.get(0).getBody(), StandardCharsets.UTF_8));
+        assertEquals(b, recovered.get(1).getId());
+        assertEquals("messages/send-template.json", recovered.get(1).getPath());
+        assertEquals("{\"b\":2}", new String(recovered.get(1).getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void ignore_a_torn_tail() throws Exception {
+        MandrillOutbox outbox = open(1024);
+        append(outbox, "messages/send.json", "{\"a\":1}");
+        long torn = append(outbox, "messages/send.json", "{\"b\":2}");
+        // the length of a record is written last: a torn record has none
+        write(torn, 0, ByteBuffer.allocate(4).putInt(0, 0));
+
+        List<MandrillOutbox.Entry> recovered = open(1024).getRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("{\"a\":1}", new String(recovered.get(0).getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void ignore_a_corrupted_tail() throws Exception {
+        MandrillOutbox outbox = open(1024);
+        append(outbox, "messages/send.json", "{\"a\":1}");
+        long corrupted = append(outbox, "messages/send.json", "{\"b\":2}");
+        append(outbox, "messages/send.json", "{\"c\":3}");
+        // last byte of the body of the second record
+        int length = "messages/send.json".length() + "{\"b\":2}".length() + 4 + 1 + 8 + 4 + 2;
+        write(corrupted, length - 1, ByteBuffer.wrap(new byte[]{'!'}));
+
+        List<MandrillOutbox.Entry> recovered = open(1024).getRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals("{\"a\":1}", new String(recovered.get(0).getBody(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void do_not_replay_done_entries() throws Exception {
+        MandrillOutbox outbox = open(1024);
+        long a = append(outbox, "messages/send.json", "{\"a\":1}");
+        long b = append(outbox, "messages/send.json", "{\"b\":2}");
+        outbox.markDone(a);
+
+        MandrillOutbox reopened = open(1024);
+        assertEquals(1, reopened.getRecovered().size());
+        assertEquals(b, reopened.getRecovered().get(0).getId());
+
+        RecordingTransport transport = new RecordingTransport();
+        reopened.replay(new MandrillClient(transport, new MandrillConfig().setApiKey("key"))).toCompletableFuture().get(5, TimeUnit.SECONDS);
+        assertEquals(1, transport.size());
+        assertEquals("{\"b\":2}", new String(transport.bodies.get(0), StandardCharsets.UTF_8));
+        assertTrue(open(1024).getRecovered().isEmpty());
+    }
+
+    @Test
+    public void delete_segments_once_done() throws Exception {
+        MandrillOutbox outbox = open(64);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            ids.add(append(outbox, "messages/send.json", "{\"i\":" + i + "}"));
+        }
+        assertEquals(4, segments().size());
+        ids.forEach(outbox::markDone);
+        // only the active segment is left
+        assertEquals(1, segments().size());
+
+        outbox.close();
+        open(64);
+        assertEquals(1, segments().size());
+    }
+
+    @Test
+    public void fail_appends_once_closed() throws Exception {
+        MandrillOutbox outbox = open(1024);
+        outbox.close();
+        CompletableFuture<Long> future = outbox.append("messages/send.json", new byte[]{'{', '}'}).toCompletableFuture();
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private MandrillOutbox open(int segmentSize) throws IOException {
+        MandrillOutbox outbox = new MandrillOutbox(folder.getRoot().toPath(), segmentSize, 1, TimeUnit.MILLISECONDS);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private static long append(MandrillOutbox outbox, String path, String body) throws Exception {
+        return outbox.append(path, body.getBytes(StandardCharsets.UTF_8)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    // the id of an entry is its segment index and its record offset
+    private void write(long id, int position, ByteBuffer bytes) throws IOException {
+        Path segment = folder.getRoot().toPath().resolve(String.format("outbox-%010d.log", (int) (id >>> 32)));
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(bytes, (int) id + position);
+        }
+    }
+
+}
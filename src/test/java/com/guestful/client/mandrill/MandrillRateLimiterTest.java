@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void reserve_the_burst_then_wait() {
+        MandrillRateLimiter limiter = new MandrillRateLimiter(1, 3);
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertEquals(0, limiter.reserve());
+        assertAbout(SECOND, limiter.reserve());
+        // permits are reserved in advance: the next one waits for the previous one
+        assertAbout(2 * SECOND, limiter.reserve());
+    }
+
+    @Test
+    public void halve_the_rate_once_per_throttling() {
+        MandrillRateLimiter limiter = new MandrillRateLimiter(10, 5);
+        limiter.onThrottled();
+        // the requests in flight come back throttled together
+        limiter.onThrottled();
+        assertEquals(5, limiter.getRate(), 0);
+        assertEquals(10, limiter.getMaxRate(), 0);
+        // the banked permits are given up
+        assertAbout(SECOND / 5, limiter.reserve());
+    }
+
+    @Test
+    public void recover_linearly_up_to_the_max_rate() {
+        MandrillRateLimiter limiter = new MandrillRateLimiter(100, 1);
+        limiter.onSuccess();
+        assertEquals(100, limiter.getRate(), 0);
+        limiter.onThrottled();
+        assertEquals(50, limiter.getRate(), 0);
+        limiter.onSuccess();
+        assertEquals(52, limiter.getRate(), 1e-9);
+        for (int i = 0; i < 24; i++) limiter.onSuccess();
+        assertEquals(100, limiter.getRate(), 1e-9);
+        limiter.onSuccess();
+        assertEquals(100, limiter.getRate(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void reject_a_null_rate() {
+        new MandrillRateLimiter(0, 1);
+    }
+
+    // the time elapsed since the previous reservations only shortens the wait
+    private static void assertAbout(long expected, long actual) {
+        assertTrue(actual + " > " + expected, actual <= expected);
+        assertTrue(actual + " < " + expected, actual > expected - expected / 10);
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillRenderCacheTest {
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Test
+    public void evict_the_least_recently_used() throws Exception {
+        MandrillRenderCache cache = new MandrillRenderCache(2, 1, TimeUnit.HOURS);
+        assertEquals("a-1", render(cache, "a"));
+        assertEquals("b-2", render(cache, "b"));
+        assertEquals("a-1", render(cache, "a"));
+        assertEquals("c-3", render(cache, "c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        // b was the least recently used
+        assertEquals("a-1", render(cache, "a"));
+        assertEquals("b-4", render(cache, "b"));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+    }
+
+    @Test
+    public void expire_after_the_time_to_live() throws Exception {
+        MandrillRenderCache cache = new MandrillRenderCache(10, 50, TimeUnit.MILLISECONDS);
+        assertEquals("a-1", render(cache, "a"));
+        assertEquals("a-1", render(cache, "a"));
+        Thread.sleep(100);
+        assertEquals("a-2", render(cache, "a"));
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void share_one_load_between_concurrent_renders() throws Exception {
+        MandrillRenderCache cache = new MandrillRenderCache(10, 1, TimeUnit.HOURS);
+        CompletableFuture<String> loading = new CompletableFuture<>();
+        CompletionStage<String> first = cache.get("a", vars("NAME", "A"), () -> {
+            loads.incrementAndGet();
+            return loading;
+        });
+        CompletionStage<String> second = cache.get("a", vars("NAME", "A"), () -> {
+            loads.incrementAndGet();
+            return loading;
+        });
+        assertSame(first, second);
+        assertFalse(first.toCompletableFuture().isDone());
+        loading.complete("html");
+        assertEquals("html", second.toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void do_not_cache_failures() throws Exception {
+        MandrillRenderCache cache = new MandrillRenderCache(10, 1, TimeUnit.HOURS);
+        CompletableFuture<String> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("boom"));
+        assertTrue(cache.get("a", vars("NAME", "A"), () -> failed).toCompletableFuture().isCompletedExceptionally());
+        assertTrue(cache.get("a", vars("NAME", "A"), () -> {
+            throw new IllegalStateException("boom");
+        }).toCompletableFuture().isCompletedExceptionally());
+        assertEquals(0, cache.size());
+        assertEquals("a-1", render(cache, "a"));
+    }
+
+    @Test
+    public void ignore_the_case_and_order_of_merge_var_names() throws Exception {
+        MandrillRenderCache cache = new MandrillRenderCache(10, 1, TimeUnit.HOURS);
+        assertEquals("a-1", render(cache, "a", vars("name", "A", "TABLE", "12")));
+        assertEquals("a-1", render(cache, "a", vars("Table", "12", "NAME", "A")));
+        assertEquals("a-2", render(cache, "a", vars("NAME", "a", "TABLE", "12")));
+        assertEquals("b-3", render(cache, "b", vars("NAME", "A", "TABLE", "12")));
+        assertEquals("a-4", render(cache, "a", vars("NAME", "A")));
+        assertEquals("a-5", render(cache, "a", vars("NAME", "A:", "TABLE", "12")));
+        cache.invalidate("a");
+        assertEquals(1, cache.size());
+    }
+
+    private String render(MandrillRenderCache cache, String slug) throws Exception {
+        return render(cache, slug, vars("NAME", "A"));
+    }
+
+    private String render(MandrillRenderCache cache, String slug, JsonArray vars) throws Exception {
+        return cache.get(slug, vars, () -> CompletableFuture.completedFuture(slug + "-" + loads.incrementAndGet())).toCompletableFuture().get(5, TimeUnit.SECONDS);
+    }
+
+    private static JsonArray vars(String... namesAndContents) {
+        JsonArrayBuilder vars = Json.createArrayBuilder();
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            vars.add(Json.createObjectBuilder().add("name", namesAndContents[i]).add("content", namesAndContents[i + 1]));
+        }
+        return vars.build();
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillRequestLoggerTest {
+
+    private final JsonObject body = Json.createObjectBuilder()
+        .add("key", "secret-api-key")
+        .add("message", Json.createObjectBuilder()
+            .add("to", Json.createArrayBuilder().add(Json.createObjectBuilder().add("email", "guest@example.com").add("type", "to")))
+            .add("merge_vars", Json.createArrayBuilder().add(Json.createObjectBuilder().add("rcpt", "guest@example.com")))
+            .add("track_opens", true)
+            .add("subject", "Hello"))
+        .build();
+
+    @Test
+    public void redact_key() {
+        String log = new MandrillRequestLogger().format(MandrillRequestBody.of(body));
+        assertFalse(log, log.contains("secret-api-key"));
+        assertTrue(log, log.contains("\"key\":\"***\""));
+        assertTrue(log, log.contains("guest@example.com"));
+        assertTrue(log, log.contains("\"track_opens\":true"));
+    }
+
+    @Test
+    public void redact_emails() {
+        String log = new MandrillRequestLogger().setRedactEmails(true).format(MandrillRequestBody.of(body));
+        assertFalse(log, log.contains("guest@"));
+        assertTrue(log, log.contains("\"email\":\"***@example.com\""));
+        assertTrue(log, log.contains("\"rcpt\":\"***@example.com\""));
+    }
+
+    @Test
+    public void same_output_for_serialized_bodies() {
+        MandrillRequestLogger logger = new MandrillRequestLogger().setRedactEmails(true);
+        assertEquals(logger.format(MandrillRequestBody.of(body)), logger.format(MandrillRequestBody.of(MandrillRequestBody.of(body).toBytes())));
+    }
+
+    @Test
+    public void keep_numbers_not_fitting_in_a_long() {
+        String json = "{\"message\":{\"ids\":[12,-9223372036854775808,18446744073709551616,-18446744073709551616,1.5],\"id\":123456789012345678901234567890}}";
+        assertEquals(json, new MandrillRequestLogger().setMaxLength(Integer.MAX_VALUE).format(MandrillRequestBody.of(json.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void truncate_large_bodies() {
+        char[] html = new char[1_000_000];
+        Arrays.fill(html, 'x');
+        JsonObject large = Json.createObjectBuilder()
+            .add("key", "secret-api-key")
+            .add("message", Json.createObjectBuilder().add("html", new String(html)))
+            .build();
+        String log = new MandrillRequestLogger().setMaxLength(100).format(MandrillRequestBody.of(large));
+        assertEquals(103, log.length());
+        assertTrue(log, log.startsWith("{\"key\":\"***\",\"message\":{\"html\":\"xxx"));
+        assertTrue(log, log.endsWith("..."));
+    }
+
+}
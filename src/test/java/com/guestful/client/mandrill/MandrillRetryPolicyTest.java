@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.ws.rs.ProcessingException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillRetryPolicyTest {
+
+    @Test
+    public void draw_delays_up_to_the_capped_exponential_backoff() {
+        MandrillRetryPolicy policy = new MandrillRetryPolicy(10, 100, 1000, TimeUnit.MILLISECONDS);
+        for (int attempt = 1; attempt <= 70; attempt++) {
+            long cap = TimeUnit.MILLISECONDS.toNanos(Math.min(1000, 100L << Math.min(attempt - 1, 20)));
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue(attempt + ": " + delay, delay >= 0 && delay <= cap);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // full jitter: the whole range is used
+            assertTrue(attempt + ": " + min, min < cap / 10);
+            assertTrue(attempt + ": " + max, max > cap - cap / 10);
+        }
+    }
+
+    @Test
+    public void retry_immediately_without_base_delay() {
+        MandrillRetryPolicy policy = new MandrillRetryPolicy(3, 0, 0, TimeUnit.MILLISECONDS);
+        assertEquals(0, policy.getDelay(1));
+        assertEquals(0, policy.getDelay(3));
+    }
+
+    @Test
+    public void retry_up_to_max_attempts() {
+        MandrillRetryPolicy policy = new MandrillRetryPolicy(3, 1, 10, TimeUnit.MILLISECONDS);
+        ProcessingException error = new ProcessingException(new SocketTimeoutException());
+        assertTrue(policy.shouldRetry(1, error));
+        assertTrue(policy.shouldRetry(2, error));
+        assertFalse(policy.shouldRetry(3, error));
+        assertFalse(policy.shouldRetry(1, new IllegalStateException()));
+    }
+
+    @Test
+    public void classify_errors() {
+        assertTrue(MandrillRetryPolicy.isRetryable(error(429, "")));
+        assertTrue(MandrillRetryPolicy.isRetryable(error(500, "{\"status\":\"error\",\"name\":\"Too_Many_Requests\"}")));
+        assertTrue(MandrillRetryPolicy.isRetryable(error(500, "{\"status\":\"error\",\"name\":\"GeneralError\"}")));
+        assertTrue(MandrillRetryPolicy.isRetryable(error(502, "<html>Bad Gateway</html>")));
+        assertTrue(MandrillRetryPolicy.isRetryable(error(503, "")));
+        assertFalse(MandrillRetryPolicy.isRetryable(error(500, "{\"status\":\"error\",\"name\":\"Invalid_Key\"}")));
+        assertFalse(MandrillRetryPolicy.isRetryable(error(500, "{\"status\":\"error\",\"name\":\"Unknown_Template\"}")));
+        assertFalse(MandrillRetryPolicy.isRetryable(error(400, "{\"status\":\"error\",\"name\":\"ValidationError\"}")));
+        assertFalse(MandrillRetryPolicy.isRetryable(error(404, "")));
+        assertTrue(MandrillRetryPolicy.isRetryable(new ProcessingException(new IOException("Connection reset"))));
+        assertFalse(MandrillRetryPolicy.isRetryable(new IllegalArgumentException()));
+    }
+
+    private static MandrillException error(int status, String body) {
+        MandrillResponse response = new MandrillResponse(status, "", new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), null);
+        return new MandrillException(response, null);
+    }
+
+}
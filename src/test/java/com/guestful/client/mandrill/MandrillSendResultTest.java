@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillSendResultTest {
+
+    @Test
+    public void read_results() {
+        List<MandrillSendResult> results = read("[" +
+            "{\"email\":\"a@guestful.com\",\"status\":\"sent\",\"reject_reason\":null,\"_id\":\"abc123\"}," +
+            "{\"email\":\"b@guestful.com\",\"status\":\"rejected\",\"reject_reason\":\"hard-bounce\",\"_id\":\"def456\",\"extra\":{\"nested\":[1,{\"x\":2}]}}," +
+            "{\"email\":\"c@guestful.com\",\"status\":\"whatever\",\"_id\":\"ghi789\"}" +
+            "]");
+        assertEquals(3, results.size());
+
+        assertEquals("a@guestful.com", results.get(0).getEmail());
+        assertEquals(MandrillSendResult.Status.SENT, results.get(0).getStatus());
+        assertNull(results.get(0).getRejectReason());
+        assertEquals("abc123", results.get(0).getId());
+        assertTrue(results.get(0).isAccepted());
+
+        assertEquals(MandrillSendResult.Status.REJECTED, results.get(1).getStatus());
+        assertEquals("hard-bounce", results.get(1).getRejectReason());
+        assertEquals("def456", results.get(1).getId());
+        assertFalse(results.get(1).isAccepted());
+
+        assertNull(results.get(2).getStatus());
+        assertEquals("ghi789", results.get(2).getId());
+    }
+
+    @Test
+    public void read_empty_results() {
+        assertTrue(read("[]").isEmpty());
+        assertTrue(MandrillSendResult.read(MandrillResponse.ok()).isEmpty());
+    }
+
+    private static List<MandrillSendResult> read(String json) {
+        return MandrillSendResult.read(new MandrillResponse(200, "OK", new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), null));
+    }
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillSenderTest {
+
+    // the requests are only answered once released
+    private final CompletableFuture<Void> released = new CompletableFuture<>();
+    private final RecordingTransport transport = new RecordingTransport() {
+        @Override
+        public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+            return released.thenCompose(v -> super.send(method, path, entity));
+        }
+
+        @Override
+        protected JsonValue respond(JsonObject body) {
+            if (body.toString().contains("fail@example.com")) throw new IllegalStateException("boom");
+            return super.respond(body);
+        }
+    };
+    private final MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+
+    @After
+    public void release() {
+        released.complete(null);
+    }
+
+    @Test
+    public void reject_when_full() throws Exception {
+        MandrillSender sender = new MandrillSender(1, 1, MandrillSender.OverflowPolicy.REJECT);
+        CompletableFuture<List<MandrillSendResult>> inFlight = submit(sender, "a@example.com");
+        awaitInFlight(sender);
+        CompletableFuture<List<MandrillSendResult>> queued = submit(sender, "b@example.com");
+        assertRejected(submit(sender, "c@example.com"));
+        assertEquals(1, sender.getRejectedCount());
+
+        released.complete(null);
+        assertEquals("a@example.com", inFlight.get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertEquals("b@example.com", queued.get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(2, sender.getSentCount());
+    }
+
+    @Test
+    public void drop_the_oldest_when_full() throws Exception {
+        MandrillSender sender = new MandrillSender(1, 1, MandrillSender.OverflowPolicy.DROP_OLDEST);
+        CompletableFuture<List<MandrillSendResult>> inFlight = submit(sender, "a@example.com");
+        awaitInFlight(sender);
+        CompletableFuture<List<MandrillSendResult>> dropped = submit(sender, "b@example.com");
+        CompletableFuture<List<MandrillSendResult>> queued = submit(sender, "c@example.com");
+        assertRejected(dropped);
+        assertEquals(1, sender.getRejectedCount());
+        assertEquals(1, sender.getQueueSize());
+
+        released.complete(null);
+        assertEquals("a@example.com", inFlight.get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertEquals("c@example.com", queued.get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(2, transport.size());
+    }
+
+    @Test
+    public void block_when_full() throws Exception {
+        MandrillSender sender = new MandrillSender(1, 1, MandrillSender.OverflowPolicy.BLOCK);
+        submit(sender, "a@example.com");
+        awaitInFlight(sender);
+        submit(sender, "b@example.com");
+        CompletableFuture<CompletableFuture<List<MandrillSendResult>>> blocked = CompletableFuture.supplyAsync(() -> submit(sender, "c@example.com"));
+        Thread.sleep(200);
+        assertFalse(blocked.isDone());
+
+        released.complete(null);
+        assertEquals("c@example.com", blocked.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(3, sender.getSentCount());
+        assertEquals(0, sender.getRejectedCount());
+    }
+
+    @Test
+    public void drain_on_shutdown() throws Exception {
+        MandrillSender sender = new MandrillSender(10, 2, MandrillSender.OverflowPolicy.REJECT);
+        CompletableFuture<List<MandrillSendResult>> a = submit(sender, "a@example.com");
+        CompletableFuture<List<MandrillSendResult>> b = submit(sender, "fail@example.com");
+        CompletableFuture<List<MandrillSendResult>> c = submit(sender, "c@example.com");
+        released.complete(null);
+
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        assertTrue(a.isDone() && c.isDone() && b.isCompletedExceptionally());
+        assertEquals(2, sender.getSentCount());
+        assertEquals(1, sender.getFailedCount());
+        assertEquals(0, sender.getActiveCount());
+        assertRejected(submit(sender, "d@example.com"));
+        assertEquals(1, sender.getRejectedCount());
+    }
+
+    @Test
+    public void reject_the_queued_messages_after_the_shutdown_timeout() throws Exception {
+        MandrillSender sender = new MandrillSender(10, 1, MandrillSender.OverflowPolicy.REJECT);
+        CompletableFuture<List<MandrillSendResult>> inFlight = submit(sender, "a@example.com");
+        awaitInFlight(sender);
+        CompletableFuture<List<MandrillSendResult>> b = submit(sender, "b@example.com");
+        CompletableFuture<List<MandrillSendResult>> c = submit(sender, "c@example.com");
+
+        assertFalse(sender.shutdown(100, TimeUnit.MILLISECONDS));
+        assertRejected(b);
+        assertRejected(c);
+        assertEquals(2, sender.getRejectedCount());
+        assertEquals(0, sender.getQueueSize());
+
+        // the in-flight message is not given up on
+        released.complete(null);
+        assertEquals("a@example.com", inFlight.get(5, TimeUnit.SECONDS).get(0).getEmail());
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(1, sender.getSentCount());
+    }
+
+    @Test
+    public void send_the_message_as_it_was_when_submitted() throws Exception {
+        MandrillSender sender = new MandrillSender(10, 1, MandrillSender.OverflowPolicy.REJECT);
+        MandrillMessage message = client.createMandrillMessage().from("noreply@example.com").subject("Your reservation").to("a@example.com");
+        CompletableFuture<List<MandrillSendResult>> first = sender.submit(message).toCompletableFuture();
+        // the message is reused for the next recipient
+        CompletableFuture<List<MandrillSendResult>> second = sender.submit(message.subject("Your cancellation").to("b@example.com")).toCompletableFuture();
+        released.complete(null);
+
+        assertEquals(1, first.get(5, TimeUnit.SECONDS).size());
+        assertEquals(2, second.get(5, TimeUnit.SECONDS).size());
+        assertEquals("Your reservation", transport.message(0).getString("subject"));
+        assertEquals("Your cancellation", transport.message(1).getString("subject"));
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void park_idle_workers_until_shutdown() throws Exception {
+        List<Thread> workers = new CopyOnWriteArrayList<>();
+        MandrillSender sender = new MandrillSender(10, 2, MandrillSender.OverflowPolicy.REJECT, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            workers.add(thread);
+            return thread;
+        });
+        for (Thread worker : workers) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            // a timed poll would show as TIMED_WAITING
+            while (worker.getState() != Thread.State.WAITING) {
+                if (System.nanoTime() > deadline) fail(worker.getState().toString());
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(sender.shutdown(5, TimeUnit.SECONDS));
+        for (Thread worker : workers) assertFalse(worker.isAlive());
+    }
+
+    private CompletableFuture<List<MandrillSendResult>> submit(MandrillSender sender, String to) {
+        return sender.submit(client.createMandrillMessage().from("noreply@example.com").subject("Your reservation").to(to)).toCompletableFuture();
+    }
+
+    private static void awaitInFlight(MandrillSender sender) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sender.getActiveCount() == 0 || sender.getQueueSize() > 0) {
+            if (System.nanoTime() > deadline) fail("No message in flight");
+            Thread.sleep(1);
+        }
+    }
+
+    private static void assertRejected(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillShardRouterTest {
+
+    private final MandrillShard a = new MandrillShard("a", "key-a").setWeight(1);
+    private final MandrillShard b = new MandrillShard("b", "key-b").setWeight(3);
+    private final MandrillShard brand = new MandrillShard("brand", "key-brand").setWeight(0).setSubaccount("brand");
+
+    private final MandrillShardRouter router = new MandrillShardRouter()
+        .addShard(a)
+        .addShard(b)
+        .addShard(brand)
+        .routeTag("newsletter", "brand")
+        .routeSenderDomain("Brand.com", "brand");
+
+    @Test
+    public void explicit_routes() {
+        assertEquals(brand, router.route(Arrays.asList("other", "newsletter"), null, "guest@example.com"));
+        assertEquals(brand, router.route(Collections.emptyList(), "info@brand.COM", "guest@example.com"));
+        assertNull(new MandrillShardRouter().route(Collections.emptyList(), null, "guest@example.com"));
+    }
+
+    @Test
+    public void hash_recipients_by_weight() {
+        Map<MandrillShard, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10_000; i++) {
+            MandrillShard shard = router.route(Collections.emptyList(), "info@guestful.com", "guest" + i + "@example.com");
+            assertEquals(shard, router.route(Collections.emptyList(), "info@guestful.com", "GUEST" + i + "@example.com"));
+            counts.merge(shard, 1, Integer::sum);
+        }
+        assertNull(counts.get(brand));
+        assertTrue(counts.toString(), counts.get(b) > 2 * counts.get(a));
+    }
+
+    @Test
+    public void skip_unhealthy_shards() {
+        MandrillCircuitBreaker breaker = new MandrillCircuitBreaker(1, 1, 1, 1, 1, TimeUnit.HOURS);
+        MandrillShard sick = new MandrillShard("sick", "key-sick").setCircuitBreaker(breaker);
+        MandrillShard healthy = new MandrillShard("healthy", "key-healthy");
+        MandrillShardRouter router = new MandrillShardRouter().addShard(sick).addShard(healthy);
+        String recipient = null;
+        for (int i = 0; recipient == null; i++) {
+            if (router.route(Collections.emptyList(), null, "guest" + i + "@example.com") == sick) recipient = "guest" + i + "@example.com";
+        }
+        breaker.onFailure(0);
+        assertNotEquals(sick, router.route(Collections.emptyList(), null, recipient));
+    }
+
+    @Test
+    public void route_each_send_without_changing_the_message() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        client.setShardRouter(new MandrillShardRouter()
+            .addShard(new MandrillShard("a", "key-a").setSubaccount("sub-a"))
+            .addShard(new MandrillShard("b", "key-b").setWeight(0))
+            .routeTag("vip", "b"));
+        MandrillMessage message = client.getTemplate("reminder").createMandrillMessage()
+            .from("noreply@example.com")
+            .to("guest@example.com");
+
+        message.sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+        message.tag("vip").sendAsync().toCompletableFuture().get(5, TimeUnit.SECONDS);
+
+        assertEquals("key-a", transport.json(0).getString("key"));
+        assertEquals("sub-a", transport.message(0).getString("subaccount"));
+        assertEquals("key-b", transport.json(1).getString("key"));
+        assertFalse(transport.message(1).containsKey("subaccount"));
+        assertEquals("key", message.getConfig().getApiKey());
+        assertNull(message.getConfig().getSubaccount());
+    }
+
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stub of the Mandrill API, to test the client offline: implements messages/send.json,
+ * messages/send-template.json, templates/render.json and templates/info.json with Mandrill-like responses,
+ * and injects latency, errors, throttling and connection drops.
+ * <p>
+ * Point a client at {@link #getUri()}, either with {@link MandrillHttpTransport#setBaseUri(String)} or by
+ * overriding {@link MandrillClient#buildWebTarget()}. Responses are delayed without blocking the server threads.
+ * Latencies and faults are drawn from a seeded random, so runs are reproducible as far as the request ordering is.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MandrillStubServer implements AutoCloseable {
+
+    /**
+     * Distribution of the response times
+     */
+    @FunctionalInterface
+    public interface Latency {
+        long nextNanos(Random random);
+
+        static Latency fixed(long duration, TimeUnit unit) {
+            long nanos = unit.toNanos(duration);
+            return random -> nanos;
+        }
+
+        static Latency uniform(long min, long max, TimeUnit unit) {
+            long from = unit.toNanos(min);
+            long range = unit.toNanos(max) - from;
+            return random -> from + (long) (random.nextDouble() * range);
+        }
+
+        /**
+         * Long-tailed response times, as seen from a real API
+         */
+        static Latency logNormal(long median, long p99, TimeUnit unit) {
+            double mu = Math.log(unit.toNanos(median));
+            // 2.326 is the 99th percentile of the standard normal distribution
+            double sigma = Math.max(0, (Math.log(unit.toNanos(p99)) - mu) / 2.326);
+            return random -> (long) Math.exp(mu + sigma * random.nextGaussian());
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ScheduledExecutorService responder;
+    private final Random random;
+    private final Map<String, String> templates = new ConcurrentHashMap<>();
+    private final Map<String, String> rejections = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final LongAdder recipients = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+    private volatile Latency latency = Latency.fixed(0, TimeUnit.NANOSECONDS);
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile double dropRate;
+
+    public MandrillStubServer() throws IOException {
+        this(0);
+    }
+
+    public MandrillStubServer(long seed) throws IOException {
+        this.random = new Random(seed);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.handlers = Executors.newFixedThreadPool(4, daemon("mandrill-stub"));
+        this.responder = Executors.newScheduledThreadPool(2, daemon("mandrill-stub-responder"));
+        this.server.setExecutor(handlers);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+    }
+
+    public String getUri() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public MandrillStubServer setLatency(Latency latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * Fraction of the requests answered with a 500 GeneralError
+     */
+    public MandrillStubServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Fraction of the requests answered with a 429 Too_Many_Requests
+     */
+    public MandrillStubServer setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    /**
+     * Fraction of the requests which connection is closed without response, after the request was read
+     */
+    public MandrillStubServer setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    /**
+     * Defines a template, rendered with its merge tags replaced. Sending an undefined template fails with Unknown_Template.
+     */
+    public MandrillStubServer addTemplate(String slug, String code) {
+        templates.put(slug, code);
+        return this;
+    }
+
+    /**
+     * Rejects the messages sent to this recipient
+     *
+     * @param reason i.e. 'hard-bounce', 'unsub'...
+     */
+    public MandrillStubServer reject(String email, String reason) {
+        rejections.put(email.toLowerCase(Locale.ROOT), reason);
+        return this;
+    }
+
+    /**
+     * @param path i.e. messages/send.json
+     * @return the number of requests received on this path, including the failed ones
+     */
+    public long getRequestCount(String path) {
+        LongAdder count = requests.get(path);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the number of recipients of the messages successfully sent
+     */
+    public long getRecipientCount() {
+        return recipients.sum();
+    }
+
+    /**
+     * @return the number of injected errors, throttles and drops
+     */
+    public long getFaultCount() {
+        return faults.sum();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        responder.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().replaceFirst("^/(api/1\\.0/)?", "");
+        requests.computeIfAbsent(path, p -> new LongAdder()).increment();
+        JsonObject body;
+        try (InputStream in = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+             JsonReader reader = Json.createReader(in)) {
+            body = reader.readObject();
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error(-1, "ValidationError", "You must specify a key value"));
+            return;
+        }
+        double draw = random.nextDouble();
+        long delay = latency.nextNanos(random);
+        if (draw < dropRate) {
+            faults.increment();
+            // no response sent: the server closes the connection
+            responder.schedule(exchange::close, delay, TimeUnit.NANOSECONDS);
+            return;
+        }
+        int status;
+        JsonValue response;
+        if (draw < dropRate + throttleRate) {
+            faults.increment();
+            status = 429;
+            response = error(-1, "Too_Many_Requests", "Too many requests");
+        } else if (draw < dropRate + throttleRate + errorRate) {
+            faults.increment();
+            status = 500;
+            response = error(-1, "GeneralError", "An unexpected error occurred processing the request");
+        } else {
+            status = 200;
+            response = answer(path, body);
+            if (response instanceof JsonObject && "error".equals(((JsonObject) response).getString("status", null))) status = 500;
+        }
+        if (delay <= 0) {
+            respond(exchange, status, response);
+        } else {
+            int s = status;
+            responder.schedule(() -> respond(exchange, s, response), delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private JsonValue answer(String path, JsonObject body) {
+        if (body.getString("key", "").isEmpty()) return error(-1, "Invalid_Key", "Invalid API key");
+        switch (path) {
+            case "messages/send-template.json": {
+                if (!templates.containsKey(body.getString("template_name", ""))) return unknownTemplate(body.getString("template_name", ""));
+                return send(body.getJsonObject("message"));
+            }
+            case "messages/send.json":
+                return send(body.getJsonObject("message"));
+            case "templates/render.json": {
+                String code = templates.get(body.getString("template_name", ""));
+                if (code == null) return unknownTemplate(body.getString("template_name", ""));
+                Map<String, String> vars = new HashMap<>();
+                JsonArray mergeVars = body.getJsonArray("merge_vars");
+                if (mergeVars != null) {
+                    for (JsonValue var : mergeVars) {
+                        JsonObject v = (JsonObject) var;
+                        vars.put(v.getString("name").toUpperCase(Locale.ROOT), v.get("content") instanceof JsonString ? v.getString("content") : String.valueOf(v.get("content")));
+                    }
+                }
+                String html;
+                try {
+                    html = MandrillCompiledTemplate.compile(code).render(vars::get);
+                } catch (IllegalArgumentException e) {
+                    html = code;
+                }
+                return Json.createObjectBuilder().add("html", html).build();
+            }
+            case "templates/info.json": {
+                String slug = body.getString("name", "");
+                String code = templates.get(slug);
+                if (code == null) return unknownTemplate(slug);
+                return Json.createObjectBuilder().add("slug", slug).add("name", slug).add("code", code).add("publish_code", code).build();
+            }
+            default:
+                return error(-1, "Unknown_Method", "Unknown method: " + path);
+        }
+    }
+
+    private JsonArray send(JsonObject message) {
+        JsonArrayBuilder results = Json.createArrayBuilder();
+        JsonArray tos = message == null ? null : message.getJsonArray("to");
+        if (tos == null) return results.build();
+        for (JsonValue value : tos) {
+            String email = ((JsonObject) value).getString("email", "");
+            String reason = rejections.get(email.toLowerCase(Locale.ROOT));
+            JsonObjectBuilder result = Json.createObjectBuilder()
+                .add("email", email)
+                .add("status", email.indexOf('@') < 1 ? "invalid" : reason == null ? "sent" : "rejected")
+                .add("_id", id());
+            if (reason == null) result.addNull("reject_reason");
+            else result.add("reject_reason", reason);
+            results.add(result);
+            recipients.increment();
+        }
+        return results.build();
+    }
+
+    private String id() {
+        return Long.toHexString(random.nextLong() | Long.MIN_VALUE) + Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+    }
+
+    private static JsonObject unknownTemplate(String slug) {
+        return error(5, "Unknown_Template", "No such template \"" + slug + "\"");
+    }
+
+    private static JsonObject error(int code, String name, String message) {
+        return Json.createObjectBuilder().add("status", "error").add("code", code).add("name", name).add("message", message).build();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonValue response) {
+        try {
+            byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException ignored) {
+            // the client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.ws.rs.client.WebTarget;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillStubServerTest {
+
+    @Test
+    public void send_through_faults() throws Exception {
+        try (MandrillStubServer stub = new MandrillStubServer(42)
+            .setLatency(MandrillStubServer.Latency.logNormal(1, 10, TimeUnit.MILLISECONDS))
+            .setThrottleRate(0.1)
+            .setErrorRate(0.05)
+            .setDropRate(0.02)
+            .reject("unsub@example.com", "unsub");
+             MandrillHttpTransport transport = new MandrillHttpTransport().setBaseUri(stub.getUri())) {
+            MandrillClient client = new MandrillClient(transport, new MandrillConfig()
+                .setApiKey("key")
+                .setRetryPolicy(new MandrillRetryPolicy(10, 1, 20, TimeUnit.MILLISECONDS)));
+            MandrillMetrics metrics = new MandrillMetrics();
+            client.setMetricsListener(metrics);
+
+            List<CompletableFuture<List<MandrillSendResult>>> sent = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                sent.add(client.createMandrillMessage()
+                    .from("noreply@example.com")
+                    .subject("Your reservation")
+                    .html("<p>See you soon</p>")
+                    .to("guest" + i + "@example.com")
+                    .sendAsync()
+                    .toCompletableFuture());
+            }
+            for (CompletableFuture<List<MandrillSendResult>> future : sent) {
+                MandrillSendResult result = future.get(30, TimeUnit.SECONDS).get(0);
+                assertEquals(MandrillSendResult.Status.SENT, result.getStatus());
+                assertEquals(32, result.getId().length());
+            }
+            MandrillSendResult rejected = client.createMandrillMessage().to("unsub@example.com").send().get(0);
+            assertEquals(MandrillSendResult.Status.REJECTED, rejected.getStatus());
+            assertEquals("unsub", rejected.getRejectReason());
+
+            assertTrue(stub.getFaultCount() > 0);
+            assertTrue(stub.getRequestCount("messages/send.json") > 301);
+            MandrillMetrics.Snapshot snapshot = metrics.snapshot().get(0);
+            assertTrue(snapshot.getRetryCount() > 0);
+            assertTrue(snapshot.getLatency(99, TimeUnit.MILLISECONDS) >= snapshot.getLatency(50, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void render_and_send_template() throws Exception {
+        try (MandrillStubServer stub = new MandrillStubServer().addTemplate("reminder", "<p>Hello *|NAME|*</p>")) {
+            MandrillClient client = new MandrillClient(new MandrillConfig().setApiKey("key")) {
+                @Override
+                protected WebTarget buildWebTarget() {
+                    return getClient().target(stub.getUri());
+                }
+            };
+            assertEquals("<p>Hello Guest</p>", client.getTemplate("reminder").createMandrillMessage().set("NAME", "Guest").render());
+            assertEquals(MandrillSendResult.Status.SENT, client.getTemplate("reminder").createMandrillMessage().to("guest@example.com").send().get(0).getStatus());
+            try {
+                client.getTemplate("missing").createMandrillMessage().to("guest@example.com").send();
+                fail();
+            } catch (MandrillException e) {
+                assertEquals("Unknown_Template", e.getName());
+                assertFalse(e.isRetryable());
+            }
+            assertEquals(2, stub.getRequestCount("messages/send-template.json"));
+            client.getClient().close();
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillSuppressionListTest {
+
+    @Test
+    public void contains_ignoring_case() {
+        MandrillSuppressionList list = new MandrillSuppressionList(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            list.add("bounced" + i + "@Example.com");
+        }
+        assertEquals(1000, list.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(list.contains("BOUNCED" + i + "@example.com"));
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertFalse(list.contains("guest" + i + "@example.com"));
+        }
+        list.remove("bounced1@example.com");
+        assertFalse(list.contains("bounced1@example.com"));
+        assertEquals(999, list.size());
+    }
+
+    @Test
+    public void learn_permanent_rejections() {
+        MandrillSuppressionList list = new MandrillSuppressionList();
+        list.update(Arrays.asList(
+            new MandrillSendResult("sent@example.com", MandrillSendResult.Status.SENT, null, "1"),
+            new MandrillSendResult("hard@example.com", MandrillSendResult.Status.REJECTED, "hard-bounce", "2"),
+            new MandrillSendResult("soft@example.com", MandrillSendResult.Status.REJECTED, "soft-bounce", "3"),
+            new MandrillSendResult("unsub@example.com", MandrillSendResult.Status.REJECTED, "unsub", "4"),
+            new MandrillSendResult("invalid@example", MandrillSendResult.Status.INVALID, null, "5")));
+        assertFalse(list.contains("sent@example.com"));
+        assertTrue(list.contains("hard@example.com"));
+        assertFalse(list.contains("soft@example.com"));
+        assertTrue(list.contains("unsub@example.com"));
+        assertTrue(list.contains("invalid@example"));
+    }
+
+}
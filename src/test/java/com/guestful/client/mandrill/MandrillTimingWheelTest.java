@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillTimingWheelTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void send_when_due() throws Exception {
+        MandrillClient client = client();
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 1, TimeUnit.MILLISECONDS)) {
+            client.setTimingWheel(wheel);
+            Instant now = Instant.now();
+            // the second one is cascaded from the upper level
+            CompletableFuture<List<MandrillSendResult>> soon = message(client, "a@example.com").sendAt(now.plusMillis(30));
+            CompletableFuture<List<MandrillSendResult>> later = message(client, "b@example.com").sendAt(now.plusMillis(300));
+            CompletableFuture<List<MandrillSendResult>> cancelled = message(client, "c@example.com").sendAt(now.plusMillis(200));
+            assertEquals(3, wheel.size());
+            assertTrue(cancelled.cancel(false));
+            assertEquals(2, wheel.size());
+
+            soon.get(5, TimeUnit.SECONDS);
+            assertFalse(later.isDone());
+            later.get(5, TimeUnit.SECONDS);
+            assertTrue(System.currentTimeMillis() >= now.plusMillis(300).toEpochMilli());
+            assertEquals(0, wheel.size());
+        }
+    }
+
+    @Test
+    public void send_on_time_when_cascaded_on_a_block_boundary() throws Exception {
+        long tick = 20;
+        List<Long> sentAt = new CopyOnWriteArrayList<>();
+        RecordingTransport transport = new RecordingTransport() {
+            @Override
+            protected JsonValue respond(JsonObject body) {
+                sentAt.add(System.currentTimeMillis());
+                return super.respond(body);
+            }
+        };
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, tick, TimeUnit.MILLISECONDS)) {
+            // first tick starting a turn of the level 0 at least a whole turn away: scheduled in the level 1
+            long deadline = (System.currentTimeMillis() / tick / 64 + 2) * 64;
+            wheel.schedule(message(client, "a@example.com"), Instant.ofEpochMilli(deadline * tick)).get(5, TimeUnit.SECONDS);
+            assertTrue(sentAt.get(0) >= deadline * tick);
+            assertTrue(sentAt.get(0) - deadline * tick + " ms late", sentAt.get(0) < (deadline + 1) * tick);
+        }
+    }
+
+    @Test
+    public void keep_sending_after_a_failure() throws Exception {
+        RecordingTransport transport = new RecordingTransport();
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        // no API key: the send request cannot be built
+        MandrillClient broken = new MandrillClient(transport, new MandrillConfig());
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 1, TimeUnit.MILLISECONDS)) {
+            Instant now = Instant.now();
+            CompletableFuture<List<MandrillSendResult>> failing = wheel.schedule(message(broken, "a@example.com"), now.plusMillis(20));
+            CompletableFuture<List<MandrillSendResult>> sameTick = wheel.schedule(message(client, "b@example.com"), now.plusMillis(20));
+            CompletableFuture<List<MandrillSendResult>> later = wheel.schedule(message(client, "c@example.com"), now.plusMillis(100));
+            try {
+                failing.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException expected) {
+            }
+            assertEquals("b@example.com", sameTick.get(5, TimeUnit.SECONDS).get(0).getEmail());
+            assertEquals("c@example.com", later.get(5, TimeUnit.SECONDS).get(0).getEmail());
+            assertEquals(2, transport.size());
+        }
+    }
+
+    @Test
+    public void recover_pending_messages() throws Exception {
+        Path journal = folder.getRoot().toPath().resolve("wheel.log");
+        MandrillClient client = client();
+        Instant at = Instant.now().plusSeconds(3600);
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 100, TimeUnit.MILLISECONDS, journal)) {
+            wheel.schedule(message(client, "a@example.com"), at);
+            wheel.schedule(message(client, "b@example.com"), at).cancel(false);
+            wheel.schedule(message(client, "c@example.com"), at);
+        }
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 100, TimeUnit.MILLISECONDS, journal)) {
+            assertEquals(2, wheel.size());
+        }
+    }
+
+    @Test
+    public void keep_recovered_recipients_apart() throws Exception {
+        Path journal = folder.getRoot().toPath().resolve("wheel.log");
+        RecordingTransport transport = new RecordingTransport();
+        MandrillClient client = new MandrillClient(transport, new MandrillConfig().setApiKey("key"));
+        Instant at = Instant.now().plusMillis(200);
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 10, TimeUnit.MILLISECONDS, journal)) {
+            wheel.schedule(message(client, "a@example.com").preserveRecipients(true), at);
+            wheel.schedule(message(client, "b@example.com").preserveRecipients(true), at);
+        }
+        try (MandrillTimingWheel wheel = new MandrillTimingWheel(client, 10, TimeUnit.MILLISECONDS, journal)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (transport.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+            assertEquals(0, wheel.size());
+        }
+        // the recipients must not see each other
+        assertEquals(2, transport.size());
+        assertEquals(1, transport.message(0).getJsonArray("to").size());
+        assertEquals(1, transport.message(1).getJsonArray("to").size());
+    }
+
+    private static MandrillClient client() {
+        MandrillClient client = new MandrillClient(new MandrillHttpTransport(), new MandrillConfig().setApiKey("key"));
+        client.setEnabled(false);
+        return client;
+    }
+
+    private static MandrillMessage message(MandrillClient client, String to) {
+        return client.createMandrillMessage().from("noreply@example.com").subject("Your reservation").html("<p>Soon</p>").to(to);
+    }
+
+}
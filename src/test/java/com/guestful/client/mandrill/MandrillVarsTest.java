@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.stream.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillVarsTest {
+
+    @Test
+    public void replace_variables_whatever_the_case() {
+        MandrillVars vars = new MandrillVars(1)
+            .set("name", "A")
+            .set("TABLE", 12)
+            .set("Name", "B");
+        assertEquals(2, vars.size());
+        assertEquals("B", vars.get("NAME"));
+        assertEquals("[{\"name\":\"name\",\"content\":\"B\"},{\"name\":\"TABLE\",\"content\":\"12\"}]", vars.toString());
+    }
+
+    @Test
+    public void remove_variables_set_to_null_or_false() {
+        MandrillVars vars = new MandrillVars()
+            .set("NAME", "A")
+            .set("VIP", true)
+            .set("TABLE", 12)
+            .set("name", (String) null)
+            .set("vip", false)
+            .set("GUESTS", (BigInteger) null)
+            .set("AMOUNT", (BigDecimal) null);
+        assertFalse(vars.contains("NAME"));
+        assertFalse(vars.contains("VIP"));
+        assertNull(vars.get("GUESTS"));
+        assertEquals(1, vars.size());
+        assertEquals("12", vars.get("table"));
+        assertTrue(vars.clear().isEmpty());
+        assertEquals("[]", vars.set("A", "a").remove("a").toString());
+    }
+
+    @Test
+    public void write_the_array_previously_built() {
+        MandrillVars vars = new MandrillVars(2)
+            .set("NAME", "Mathieu")
+            .set("TABLE", 12)
+            .set("GUESTS", 4L)
+            .set("RATIO", 1.5)
+            .set("TOTAL", new BigDecimal("25.50"))
+            .set("ID", new BigInteger("12345678901234567890"))
+            .set("VIP", true)
+            .set("FIRST", false);
+        JsonArrayBuilder previous = Json.createArrayBuilder();
+        String[][] expected = {{"NAME", "Mathieu"}, {"TABLE", "12"}, {"GUESTS", "4"}, {"RATIO", "1.5"}, {"TOTAL", "25.50"}, {"ID", "12345678901234567890"}, {"VIP", "true"}};
+        for (String[] var : expected) {
+            previous.add(Json.createObjectBuilder().add("name", var[0]).add("content", var[1]));
+        }
+        JsonArray array = previous.build();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator generator = Json.createGenerator(out);
+        generator.writeStartObject();
+        vars.writeTo(generator, "vars");
+        generator.writeEnd();
+        generator.close();
+        assertEquals(array, Json.createReader(new ByteArrayInputStream(out.toByteArray())).readObject().getJsonArray("vars"));
+        assertEquals(array, vars.toJson().build());
+    }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class MandrillWebhookTest {
+
+    private static final String KEY = "webhook-key";
+    private static final String URL = "https://example.com/mandrill/events";
+    private static final String EVENTS = "[" +
+        "{\"event\":\"send\",\"ts\":1365109999,\"_id\":\"id1\",\"msg\":{\"ts\":1365109999,\"subject\":\"Your reservation\",\"email\":\"a@example.com\",\"sender\":\"noreply@example.com\",\"tags\":[\"reminder\"],\"opens\":[],\"clicks\":[],\"state\":\"sent\",\"metadata\":{\"user_id\":111},\"_id\":\"id1\"}}," +
+        "{\"event\":\"open\",\"ts\":1365110000,\"_id\":\"id1\",\"msg\":{\"email\":\"a@example.com\",\"tags\":[\"reminder\",\"vip\"],\"opens\":[{\"ts\":1365110000}],\"state\":\"sent\",\"_id\":\"id1\"},\"ip\":\"127.0.0.1\",\"location\":{\"country\":\"Canada\"},\"user_agent\":\"Mozilla/5.0 (Macintosh)\"}," +
+        "{\"event\":\"click\",\"ts\":1365110001,\"_id\":\"id2\",\"msg\":{\"email\":\"b@example.com\",\"tags\":[],\"state\":\"sent\",\"_id\":\"id2\"},\"url\":\"https://example.com/?a=1&b=\u00e9\"}," +
+        "{\"event\":\"hard_bounce\",\"ts\":1365110002,\"_id\":\"id3\",\"msg\":{\"email\":\"c@example.com\",\"state\":\"bounced\",\"bounce_description\":\"bad_mailbox\",\"_id\":\"id3\"}}" +
+        "]";
+
+    @Test
+    public void decode_events() {
+        List<MandrillEvent> events = MandrillWebhook.decode(EVENTS);
+        assertEquals(4, events.size());
+        MandrillEvent open = events.get(1);
+        assertEquals(MandrillEvent.Type.OPEN, open.getType());
+        assertEquals(1365110000, open.getTimestamp());
+        assertEquals("id1", open.getId());
+        assertEquals("a@example.com", open.getEmail());
+        assertArrayEquals(new String[]{"reminder", "vip"}, open.getTags());
+        assertEquals("Mozilla/5.0 (Macintosh)", open.getUserAgent());
+        assertEquals("Your reservation", events.get(0).getSubject());
+        assertEquals("https://example.com/?a=1&b=\u00e9", events.get(2).getUrl());
+        assertEquals("bad_mailbox", events.get(3).getBounceDescription());
+    }
+
+    @Test
+    public void receive_signed_events() throws Exception {
+        Queue<String> handled = new ConcurrentLinkedQueue<>();
+        MandrillWebhook webhook = new MandrillWebhook(KEY, URL)
+            .on(MandrillEvent.Type.SEND, event -> handled.add("send " + event.getEmail()))
+            .on(MandrillEvent.Type.OPEN, "vip", event -> handled.add("vip open " + event.getEmail()))
+            .on(MandrillEvent.Type.CLICK, "vip", event -> handled.add("vip click " + event.getEmail()))
+            .on(MandrillEvent.Type.HARD_BOUNCE, event -> {
+                throw new IllegalStateException("boom");
+            });
+        String signature = sign(URL + "mandrill_events" + EVENTS);
+        byte[] body = ("mandrill_events=" + URLEncoder.encode(EVENTS, "UTF-8")).getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(4, webhook.receive(new ByteArrayInputStream(body), signature));
+        assertTrue(webhook.verify(signature, Collections.singletonMap("mandrill_events", EVENTS)));
+        assertTrue(webhook.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(4, webhook.getHandledCount());
+        assertEquals(1, webhook.getFailedCount());
+        assertEquals(2, handled.size());
+        assertTrue(handled.contains("send a@example.com"));
+        assertTrue(handled.contains("vip open a@example.com"));
+    }
+
+    @Test
+    public void reject_invalid_signature() throws Exception {
+        try (MandrillWebhook webhook = new MandrillWebhook(KEY, URL)) {
+            byte[] body = ("mandrill_events=" + URLEncoder.encode(EVENTS, "UTF-8")).getBytes(StandardCharsets.US_ASCII);
+            try {
+                webhook.receive(new ByteArrayInputStream(body), sign(URL + "mandrill_events" + EVENTS.replace("a@", "z@")));
+                fail();
+            } catch (SecurityException expected) {
+            }
+            assertEquals(0, webhook.getReceivedCount());
+            assertFalse(webhook.verify(null, Collections.singletonMap("mandrill_events", EVENTS)));
+        }
+    }
+
+    private static String sign(String data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(KEY.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+        return Base64.getEncoder().encodeToString(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.mandrill;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Keeps the requests in memory and answers the sends with a 'sent' result per recipient.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class RecordingTransport implements MandrillTransport {
+
+    final List<String> paths = Collections.synchronizedList(new ArrayList<>());
+    final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<>());
+    final List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public CompletionStage<MandrillResponse> send(String method, String path, Entity entity) {
+        CompletableFuture<MandrillResponse> future = new CompletableFuture<>();
+        try {
+            String encoding = entity.getContentEncoding();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            entity.writeTo(out);
+            byte[] body = out.toByteArray();
+            if ("gzip".equals(encoding)) body = gunzip(body);
+            paths.add(path);
+            bodies.add(body);
+            encodings.add(encoding);
+            future.complete(new MandrillResponse(200, "OK", new ByteArrayInputStream(respond(json(body)).toString().getBytes("UTF-8")), null));
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    JsonObject json(int request) {
+        return json(bodies.get(request));
+    }
+
+    JsonObject message(int request) {
+        return json(request).getJsonObject("message");
+    }
+
+    int size() {
+        return bodies.size();
+    }
+
+    protected JsonValue respond(JsonObject body) {
+        JsonArrayBuilder results = Json.createArrayBuilder();
+        JsonObject message = body.getJsonObject("message");
+        JsonArray tos = message == null ? null : message.getJsonArray("to");
+        if (tos != null) {
+            for (JsonValue to : tos) {
+                String email = ((JsonObject) to).getString("email");
+                results.add(Json.createObjectBuilder().add("email", email).add("status", "sent").add("_id", "id-" + email));
+            }
+        }
+        return results.build();
+    }
+
+    static JsonObject json(byte[] body) {
+        return Json.createReader(new ByteArrayInputStream(body)).readObject();
+    }
+
+    static byte[] gunzip(byte[] body) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) >= 0; ) out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+}